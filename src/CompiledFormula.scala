@@ -0,0 +1,382 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+import parser.State;
+import parser.VarList;
+import parser.`type`._;
+import simulator.PathFull;
+
+package smcmdp {
+
+/**
+ * Read access to the values of the variables of a trace, by position in the
+ * trace and by slot, i.e. the index of the variable among those used by the
+ * compiled formula.
+ */
+abstract class TraceData {
+  def size() : Int;
+  def value(pos: Int, slot: Int) : Double;
+}
+
+/**
+ * Trace data read straight from a PRISM path. Variable types are resolved once,
+ * so decoding a value is a single cast.
+ */
+class PathData(f: CompiledFormula, path: PathFull) extends TraceData {
+  def size() : Int = path.size().toInt;
+  
+  def value(pos: Int, slot: Int) : Double = f.value(path.getState(pos), slot);
+}
+
+/**
+ * Trace data recorded state by state during simulation, for paths that do not
+ * keep their states. Only the variables used by the formula are stored, in a
+ * buffer that is reused for every trace and only grows with the trace length.
+ * As for PathFull, the size is the number of transitions taken so far.
+ */
+class RecordedData(f: CompiledFormula) extends TraceData {
+  private val width = f.vars.length;
+  private var values = new Array[Double](64 * math.max(width, 1));
+  private var n = 0;
+  
+  def size() : Int = n - 1;
+  
+  def value(pos: Int, slot: Int) : Double = values(pos * width + slot);
+  
+  def clear() { n = 0; }
+  
+  def record(state: State) {
+    if((n + 1) * width > values.length)
+      values = java.util.Arrays.copyOf(values, 2 * values.length);
+    var slot = 0;
+    while(slot < width) {
+      values(n * width + slot) = f.value(state, slot);
+      slot += 1;
+    }
+    n += 1;
+  }
+}
+
+/**
+ * Results of compiled formulae are packed into a single Int instead of a SatResult:
+ * nSteps if the formula is satisfied, ~nSteps (i.e. -nSteps-1) if not. The
+ * connectives below pick nSteps exactly as the operators of SatResult do.
+ */
+object Verdict {
+  def sat(r: Int) : Boolean = r >= 0;
+  def nSteps(r: Int) : Int = if(r >= 0) r else ~r;
+  def of(sat: Boolean, nSteps: Int) : Int = if(sat) nSteps else ~nSteps;
+  def toSatResult(r: Int) : SatResult = new SatResult(sat(r), nSteps(r));
+  
+  // Same truth: the later of two successes, the earlier of two failures (both the larger Int).
+  // Different truth: the failure.
+  def and(a: Int, b: Int) : Int = if((a >= 0) == (b >= 0)) math.max(a, b) else math.min(a, b);
+  def or(a: Int, b: Int) : Int = if((a >= 0) == (b >= 0)) math.min(a, b) else math.max(a, b);
+  def imp(a: Int, b: Int) : Int = or(~a, b);
+  def iff(a: Int, b: Int) : Int = and(imp(a, b), imp(b, a));
+}
+
+/** A term compiled against the variables of a model. */
+abstract class NumExpr {
+  def apply(d: TraceData, i: Int) : Double;
+  /** Whether the term contains a formula with a temporal operator, i.e. looks further than its position. */
+  def temporal: Boolean = false;
+}
+
+abstract class FnExpr(val a: NumExpr, val b: NumExpr) extends NumExpr {
+  override val temporal = a.temporal || b.temporal;
+}
+
+/** A formula compiled against the variables of a model. */
+abstract class Node {
+  /** Evaluates the formula at position i of the trace. */
+  def eval(d: TraceData, i: Int) : Int;
+  /** Whether the formula looks further than its own position, i.e. contains a temporal operator. */
+  def temporal: Boolean = false;
+}
+
+abstract class AtomNode(val a: NumExpr, val b: NumExpr) extends Node {
+  override val temporal = a.temporal || b.temporal;
+}
+
+class NotNode(val n: Node) extends Node {
+  def eval(d: TraceData, i: Int) : Int = ~n.eval(d, i);
+  override val temporal = n.temporal;
+}
+
+abstract class BinopNode(val c: Connective, val n1: Node, val n2: Node) extends Node {
+  def combine(r1: Int, r2: Int) : Int;
+  def eval(d: TraceData, i: Int) : Int = combine(n1.eval(d, i), n2.eval(d, i));
+  override val temporal = n1.temporal || n2.temporal;
+}
+
+/**
+ * Temporal operators, evaluated with a loop over the trace rather than one
+ * recursive call per position. If the checkpoint rule applies, checkpoint and
+ * inner are the two sides of f2.
+ * 
+ * When the operator is nested in another one, it would be evaluated from almost
+ * every position of the trace, so instead its verdicts for all positions are
+ * tabulated once, from the end of the trace backwards (see tabulate).
+ */
+class UntilNode(val id: Int, val weak: Boolean, val f1: Node, val f2: Node,
+                val checkpoint: Node, val inner: UntilNode) extends Node {
+  override val temporal = true;
+  
+  private var table = new Array[Int](0);
+  var tabulated = false;
+  
+  def eval(d: TraceData, i: Int) : Int = {
+    if(tabulated) return table(i);
+    
+    val last = d.size() - 1;
+    var acc = -1;           // Latest nSteps of f1 so far, all of which were satisfied
+    var j = i;
+    while(true) {
+      var r = 0;
+      var decided = true;
+      if(j >= last) {       // Weak until is satisfied if f1 held until the end; strong until needs f2
+        r = if(weak) Verdict.or(f1.eval(d, j), f2.eval(d, j)) else f2.eval(d, j);
+      } else {
+        val checkpointSat = if(checkpoint == null) -1 else checkpoint.eval(d, j);
+        if(checkpointSat >= 0) {
+          r = Verdict.and(checkpointSat, inner.eval(d, j));
+        } else {
+          r = f2.eval(d, j);
+          if(r < 0) {
+            r = f1.eval(d, j);
+            if(r >= 0) { acc = math.max(acc, r); decided = false; }
+          }
+        }
+      }
+      if(decided)
+        return if(r >= 0) math.max(acc, r) else r;
+      j = j + 1;
+    }
+    0;
+  }
+  
+  /**
+   * Computes the verdict at every position of the trace, using the verdict of the
+   * next position instead of looking further ahead. Operators inside f1 and f2
+   * must be tabulated already.
+   */
+  def tabulate(d: TraceData) : Unit = {
+    val n = math.max(d.size(), 1); // A trace without transitions still has its first position, as in eval
+    if(table.length < n)
+      table = new Array[Int](math.max(n, 2 * table.length));
+    tabulated = false;
+    
+    var j = n - 1;
+    table(j) = if(weak) Verdict.or(f1.eval(d, j), f2.eval(d, j)) else f2.eval(d, j);
+    while(j > 0) {
+      j = j - 1;
+      val checkpointSat = if(checkpoint == null) -1 else checkpoint.eval(d, j);
+      if(checkpointSat >= 0) {
+        table(j) = Verdict.and(checkpointSat, inner.eval(d, j));
+      } else {
+        val satNow = f2.eval(d, j);
+        if(satNow >= 0) {
+          table(j) = satNow;
+        } else {
+          val satCont = f1.eval(d, j);
+          table(j) = if(satCont < 0) satCont else Verdict.and(satCont, table(j + 1));
+        }
+      }
+    }
+    tabulated = true;
+  }
+}
+
+/**
+ * A formula compiled against the VarList of a model: operators are resolved
+ * into specialised nodes, variables into slots with a known type, and no
+ * SatResult is created except for the final one.
+ * 
+ * Compiled formulae are not thread-safe (see Monitor), so each thread should
+ * compile its own.
+ */
+class CompiledFormula(val root: Node, val vars: Array[Int], val types: Array[Int], val untils: Array[UntilNode]) {
+  
+  def numUntils: Int = untils.length;
+  
+  /** The value of the variable in the given slot, decoded according to its type. */
+  def value(s: State, slot: Int) : Double = {
+    val o = s.varValues(vars(slot));
+    types(slot) match {
+      case CompiledFormula.INT  => o.asInstanceOf[java.lang.Integer].intValue;
+      case CompiledFormula.BOOL => if(o.asInstanceOf[java.lang.Boolean].booleanValue) 1.0 else 0.0;
+      case _                    => o.asInstanceOf[java.lang.Double].doubleValue;
+    }
+  }
+  
+  /** Whether some temporal operator is inside another one. */
+  val nested: Boolean = untils.exists(u => u.f1.temporal || u.f2.temporal);
+  
+  /**
+   * Nested temporal operators are tabulated bottom-up, which takes time linear
+   * in the trace length for each operator, instead of evaluating the inner ones
+   * again from every position reached by the outer ones.
+   */
+  def check(d: TraceData) : SatResult = {
+    if(!nested)
+      return Verdict.toSatResult(root.eval(d, 0));
+    
+    for(u <- untils)              // Inner operators are compiled, and thus numbered, first
+      u.tabulate(d);
+    val r = root.eval(d, 0);
+    for(u <- untils)
+      u.tabulated = false;
+    Verdict.toSatResult(r);
+  }
+}
+
+object CompiledFormula {
+  val INT = 0;
+  val BOOL = 1;
+  val DOUBLE = 2;
+  
+  /**
+   * Compiles f against the variables in vars. Prints a warning and returns null
+   * if the formula uses something that cannot be interpreted.
+   */
+  def compile(f: Formula, vars: VarList) : CompiledFormula = compile(f, vars, true);
+  
+  /**
+   * Same as compile(f, vars), but only warns if asked to, e.g. so that a
+   * formula that every thread compiles is reported once.
+   */
+  def compile(f: Formula, vars: VarList, warn: Boolean) : CompiledFormula = {
+    val c = new Compilation(vars);
+    try {
+      val root = c.formula(f);
+      new CompiledFormula(root, c.slots.toArray, c.slotTypes.toArray, c.untils.toArray);
+    } catch {
+      case e: IllegalArgumentException =>
+        if(warn) System.err.println("*** WARNING *** Cannot compile formula, checking traces with the interpreter: " + e.getMessage());
+        null;
+    }
+  }
+  
+  private class Compilation(vars: VarList) {
+    val slots = new scala.collection.mutable.ArrayBuffer[Int];
+    val slotTypes = new scala.collection.mutable.ArrayBuffer[Int];
+    val untils = new scala.collection.mutable.ArrayBuffer[UntilNode];
+    
+    def slot(name: String) : Int = {
+      val index = vars.getIndex(name);
+      if(index < 0) throw new IllegalArgumentException("unknown variable " + name);
+      val s = slots.indexOf(index);
+      if(s >= 0) return s;
+      slots += index;
+      slotTypes += (vars.getType(index) match {
+        case t: TypeInt  => INT;
+        case t: TypeBool => BOOL;
+        case _           => DOUBLE;
+      });
+      slots.size - 1;
+    }
+    
+    def term(t: Term) : NumExpr = {
+      t match {
+        case Var(name: String) =>
+          val s = slot(name);
+          new NumExpr { def apply(d: TraceData, i: Int) = d.value(i, s); };
+        case Num(x: Double) =>
+          new NumExpr { def apply(d: TraceData, i: Int) = x; };
+        case Form(g: Formula) =>
+          val n = formula(g);
+          new NumExpr { def apply(d: TraceData, i: Int) = if(n.eval(d, i) >= 0) 1 else 0; override val temporal = n.temporal; };
+        case Fn(op: String, t1: Term, t2: Term) =>
+          val a = term(t1); val b = term(t2);
+          op match {
+            case "+" => new FnExpr(a, b) { def apply(d: TraceData, i: Int) = a(d, i) + b(d, i); };
+            case "-" => new FnExpr(a, b) { def apply(d: TraceData, i: Int) = a(d, i) - b(d, i); };
+            case "*" => new FnExpr(a, b) { def apply(d: TraceData, i: Int) = a(d, i) * b(d, i); };
+            case "/" => new FnExpr(a, b) { def apply(d: TraceData, i: Int) = a(d, i) / b(d, i); };
+            case "^" => new FnExpr(a, b) { def apply(d: TraceData, i: Int) = math.pow(a(d, i), b(d, i)); };
+            case _ => throw new IllegalArgumentException("unknown function " + t);
+          }
+        case _ => throw new IllegalArgumentException("unknown term " + t);
+      }
+    }
+    
+    def pred(p: Pred) : Node = {
+      p match {
+        case R(r: String, List(t1: Term, t2: Term)) =>
+          val a = term(t1); val b = term(t2);
+          r match {
+            case "="  => new AtomNode(a, b) { def eval(d: TraceData, i: Int) = if(a(d, i) == b(d, i)) i else ~i; };
+            case "!=" | "/=" =>
+                         new AtomNode(a, b) { def eval(d: TraceData, i: Int) = if(a(d, i) != b(d, i)) i else ~i; };
+            case ">"  => new AtomNode(a, b) { def eval(d: TraceData, i: Int) = if(a(d, i) >  b(d, i)) i else ~i; };
+            case "<"  => new AtomNode(a, b) { def eval(d: TraceData, i: Int) = if(a(d, i) <  b(d, i)) i else ~i; };
+            case ">=" => new AtomNode(a, b) { def eval(d: TraceData, i: Int) = if(a(d, i) >= b(d, i)) i else ~i; };
+            case "<=" => new AtomNode(a, b) { def eval(d: TraceData, i: Int) = if(a(d, i) <= b(d, i)) i else ~i; };
+            case _ => throw new IllegalArgumentException("unknown predicate " + p);
+          }
+        case _ => throw new IllegalArgumentException("unknown predicate " + p);
+      }
+    }
+    
+    def formula(f: Formula) : Node = {
+      f match {
+        case True  => new Node { def eval(d: TraceData, i: Int) = i; };
+        case False => new Node { def eval(d: TraceData, i: Int) = ~i; };
+        case Atom(p: Pred) => pred(p);
+        case Not(g: Formula) => new NotNode(formula(g));
+        case Binop(c: Connective, g1: Formula, g2: Formula) => binop(c, formula(g1), formula(g2));
+        case TempOp(tc: TConnective, g1: Formula, g2: Formula) =>
+          val weak = tc match { case WeakUntil(_) => true; case StrongUntil(_) => false; };
+          val n1 = formula(g1);
+          val n2 = formula(g2);
+          val u = n2 match {
+            case b: BinopNode if(Conf.CHECKPOINT_LAST_ACTION && b.c == And && b.n2.isInstanceOf[UntilNode]) =>
+              new UntilNode(untils.size, weak, n1, n2, b.n1, b.n2.asInstanceOf[UntilNode]);
+            case _ => new UntilNode(untils.size, weak, n1, n2, null, null);
+          }
+          untils += u;
+          u;
+      }
+    }
+    
+    def binop(c: Connective, n1: Node, n2: Node) : Node = {
+      c match {
+        case And => new BinopNode(c, n1, n2) { def combine(r1: Int, r2: Int) = Verdict.and(r1, r2); };
+        case Or  => new BinopNode(c, n1, n2) { def combine(r1: Int, r2: Int) = Verdict.or(r1, r2); };
+        case Imp => new BinopNode(c, n1, n2) { def combine(r1: Int, r2: Int) = Verdict.imp(r1, r2); };
+        case Iff => new BinopNode(c, n1, n2) { def combine(r1: Int, r2: Int) = Verdict.iff(r1, r2); };
+      }
+    }
+  }
+}
+
+}
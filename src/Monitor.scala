@@ -0,0 +1,207 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+import scala.collection.mutable.ArrayBuffer;
+
+package smcmdp {
+
+/**
+ * Incremental monitor for a compiled formula. Instead of evaluating the formula
+ * over a finished trace, the monitor is queried while the trace is being generated
+ * and answers as soon as the verdict can no longer change, whatever the rest
+ * of the trace turns out to be.
+ * 
+ * The monitor is only ever told which positions are known not to be the last
+ * of the trace, so it never applies the end-of-trace rules of the temporal
+ * operators: it waits instead. Whenever it does answer, the result (including
+ * nSteps) is exactly the one Satisfaction.interpret gives on the full trace.
+ */
+class Monitor(val f: CompiledFormula) {
+  
+  /** Stands for a result that is not fixed yet. */
+  private val OPEN = Int.MinValue;
+  
+  /**
+   * Progress of a temporal operator started at some position: the next position
+   * to look at, the latest nSteps of the f1's seen so far, and the final result.
+   * Scans are reused between traces; a stale stamp means the scan is unused.
+   */
+  private class Scan {
+    var stamp: Int = -1;
+    var next: Int = 0;
+    var acc: Int = -1;
+    var result: Int = OPEN;
+  }
+  
+  private val scans = Array.fill(f.numUntils)(new ArrayBuffer[Scan]);
+  private var data: TraceData = null;
+  private var known: Int = 0;        // Positions [0, known) are known not to be the last
+  private var stamp: Int = 0;        // Identifies the current trace
+  private var lower: Int = 0;        // When eval returns OPEN, a lower bound on the nSteps it will have
+  
+  /**
+   * Starts monitoring a new trace. The trace may still be empty: it is only
+   * read up to the positions later given to check.
+   */
+  def reset(d: TraceData) : Unit = {
+    data = d;
+    known = 0;
+    stamp = stamp + 1;
+  }
+  
+  /**
+   * Positions [0, n) of the trace exist and are known not to be the last one.
+   * Returns the verdict of the formula on the trace if it is already fixed,
+   * or null if it still depends on what comes next.
+   */
+  def check(n: Int) : SatResult = {
+    known = n;
+    val r = eval(f.root, 0);
+    if(r == OPEN) null else Verdict.toSatResult(r);
+  }
+  
+  private def eval(g: Node, i: Int) : Int = {
+    if(!g.temporal) return g.eval(data, i);   // Only looks at position i
+    g match {
+      case u: UntilNode => until(u, i);
+      case n: NotNode => val r = eval(n.n, i); if(r == OPEN) OPEN else ~r;
+      case b: BinopNode =>
+        val r1 = eval(b.n1, i); val lower1 = lower;
+        val r2 = eval(b.n2, i); val lower2 = lower;
+        binop(b, r1, lower1, r2, lower2);
+    }
+  }
+  
+  /**
+   * Combines the results of both sides of a connective. If one side is still
+   * open, the result is only fixed when the other side decides it alone, and
+   * when the open side cannot end up changing its nSteps either. The connectives
+   * only ever pick the nSteps of one of their sides, so a lower bound for an
+   * open result is the smallest nSteps either side may still have.
+   */
+  private def binop(b: BinopNode, r1: Int, lower1: Int, r2: Int, lower2: Int) : Int = {
+    if(r1 != OPEN && r2 != OPEN) {
+      b.combine(r1, r2);
+    } else if(r1 == OPEN && r2 == OPEN) {
+      lower = math.min(lower1, lower2);
+      OPEN;
+    } else {
+      val r = if(r1 != OPEN) r1 else r2;
+      val open = if(r1 != OPEN) lower2 else lower1;
+      // Whether the decided side fixes the result: false for And, true for Or, 
+      // and for Imp a false premise or a true conclusion.
+      val decides = b.c match {
+        case And => r < 0;
+        case Or  => r >= 0;
+        case Imp => if(r1 != OPEN) r < 0 else r >= 0;
+        case Iff => false;
+      }
+      if(decides && Verdict.nSteps(r) <= open) {
+        if(b.c == Imp && r1 != OPEN) ~r else r;
+      } else {
+        lower = math.min(Verdict.nSteps(r), open);
+        OPEN;
+      }
+    }
+  }
+  
+  private def scan(u: UntilNode, i: Int) : Scan = {
+    val buffer = scans(u.id);
+    while(buffer.size <= i)
+      buffer += new Scan();
+    val s = buffer(i);
+    if(s.stamp != stamp) {
+      s.stamp = stamp; s.next = i; s.acc = -1; s.result = OPEN;
+    }
+    s;
+  }
+  
+  /**
+   * Same steps as UntilNode.eval, resumed from wherever the scan stopped the
+   * last time, and never past position known.
+   */
+  private def until(u: UntilNode, i: Int) : Int = {
+    val s = scan(u, i);
+    var blocked = false;
+    while(s.result == OPEN && s.next < known && !blocked) {
+      val j = s.next;
+      var decided = OPEN;
+      
+      if(u.checkpoint != null) {
+        val checkpointSat = eval(u.checkpoint, j);
+        if(checkpointSat == OPEN) blocked = true;
+        else if(checkpointSat >= 0) {
+          val innerSat = until(u.inner, j);
+          if(innerSat == OPEN) blocked = true;
+          else decided = Verdict.and(checkpointSat, innerSat);
+        }
+      }
+      
+      if(decided == OPEN && !blocked) {
+        val satNow = eval(u.f2, j);
+        if(satNow == OPEN) blocked = true;
+        else if(satNow >= 0) decided = satNow;
+        else {
+          val satCont = eval(u.f1, j);
+          if(satCont == OPEN) blocked = true;
+          else if(satCont < 0) decided = satCont;
+          else s.acc = math.max(s.acc, satCont);
+        }
+      }
+      
+      if(decided != OPEN) s.result = if(decided >= 0) math.max(s.acc, decided) else decided;
+      else if(!blocked)   s.next = j + 1;
+    }
+    
+    if(s.result == OPEN)
+      lower = s.next;     // Whatever decides this scan is evaluated at s.next or later
+    s.result;
+  }
+}
+
+object Monitor {
+  /**
+   * Whether a formula can be monitored. Temporal operators inside I(...) terms
+   * would be evaluated over the unfinished trace.
+   */
+  def supports(f: CompiledFormula) : Boolean = supports(f.root);
+  
+  private def supports(g: Node) : Boolean = {
+    g match {
+      case u: UntilNode => supports(u.f1) && supports(u.f2);
+      case n: NotNode => supports(n.n);
+      case b: BinopNode => supports(b.n1) && supports(b.n2);
+      case _ => !g.temporal;
+    }
+  }
+}
+
+}
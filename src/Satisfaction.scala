@@ -157,8 +157,14 @@ class SatResult(var sat: Boolean, var nSteps: Int){
     (!this) || that;
   }
   
+  /**
+   * Equivalence. The converse used to be computed on the sides as the first
+   * implication left them, so that a <=> b was decided as a ==> b.
+   */
   def <=>(that: SatResult) : SatResult = {
-    (this -> that) && (that -> this)
+    // -> overwrites its left side, so the converse is computed on copies first
+    val converse = new SatResult(that.sat, that.nSteps) -> new SatResult(this.sat, this.nSteps);
+    (this -> that) && converse
   }
   
   def unary_! : SatResult = {
@@ -203,6 +209,7 @@ object Satisfaction {
     p match {
       case R("=", List(t1: Term, t2: Term))  => new SatResult(interpret(tr, t1) == interpret(tr, t2), tr.start);
       case R("!=", List(t1: Term, t2: Term)) => new SatResult(interpret(tr, t1) != interpret(tr, t2), tr.start);
+      case R("/=", List(t1: Term, t2: Term)) => new SatResult(interpret(tr, t1) != interpret(tr, t2), tr.start); // What the parser makes of !=
       case R(">", List(t1: Term, t2: Term))  => new SatResult(interpret(tr, t1) > interpret(tr, t2), tr.start);
       case R("<", List(t1: Term, t2: Term))  => new SatResult(interpret(tr, t1) < interpret(tr, t2), tr.start);
       case R(">=", List(t1: Term, t2: Term)) => new SatResult(interpret(tr, t1) >= interpret(tr, t2), tr.start);
@@ -0,0 +1,146 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Collects the verdicts of traces in SMC mode, counted in batches of the jobs
+ * a worker claimed at once. A batch takes a ticket once its jobs are claimed,
+ * before its traces are generated, and the master takes batches in the order
+ * of their tickets. The traces the stopping rule sees thus never depend on how
+ * long they took, as they would if results were taken as they come in.
+ * 
+ * Each SMC run is a generation of tickets, started with reset. Once the master
+ * has decided, it cancels the run: workers then drop the batches they are
+ * generating, and batches of a cancelled or earlier generation are rejected
+ * whenever they are put or taken, however late they come in.
+ */
+public class BatchedResults {
+  protected static class Batch implements Comparable<Batch> {
+    final long ticket;
+    final int numTraces, numSat;
+    
+    Batch(long ticket, int numTraces, int numSat) {
+      this.ticket = ticket; this.numTraces = numTraces; this.numSat = numSat;
+    }
+    
+    public int compareTo(Batch other) { return (ticket < other.ticket) ? -1 : ((ticket == other.ticket) ? 0 : 1); }
+  }
+  
+  protected AtomicLong tickets;          // The generation in the upper half, tickets of it handed out in the lower one
+  protected volatile int generation;     // The generation batches are taken for
+  protected volatile boolean cancelled;  // Whether the master no longer takes batches of the generation
+  protected BlockingQueue<Batch> done;   // Batches put by workers, not yet seen by the master
+  
+  // Only used by the master
+  protected PriorityQueue<Batch> pending; // Batches that came in before some with smaller tickets
+  protected long next;                    // Ticket of the next batch to take
+  protected int numTraces, numSat;        // Totals of the batches taken
+  
+  public BatchedResults() {
+    tickets = new AtomicLong(0);
+    generation = 0;
+    done = new LinkedBlockingQueue<Batch>();
+    pending = new PriorityQueue<Batch>();
+    reset();
+  }
+  
+  /**
+   * Starts a new generation for the next SMC run, with no batches taken. Every
+   * batch of an earlier generation is rejected from now on.
+   */
+  public void reset() {
+    cancelled = true;                 // Until the new generation is set up
+    generation = generation + 1;
+    next = (long) generation << 32;
+    tickets.set(next);
+    done.clear();
+    pending.clear();
+    numTraces = 0;
+    numSat = 0;
+    cancelled = false;
+  }
+  
+  /**
+   * @return The ticket of a batch of jobs just claimed, to put its verdicts with
+   */
+  public long ticket() { return tickets.getAndIncrement(); }
+  
+  /**
+   * Hands on how many traces of the batch satisfied the formula, unless its
+   * generation was cancelled or is over.
+   */
+  public void put(long ticket, int numTraces, int numSat) {
+    if(!isCancelled(ticket))
+      done.add(new Batch(ticket, numTraces, numSat));
+  }
+  
+  /**
+   * Tells workers to stop generating traces for the current generation, since
+   * the master has decided, and drops the batches not taken yet.
+   */
+  public void cancel() {
+    cancelled = true;
+    done.clear();
+  }
+  
+  /** @return Whether workers should stop generating traces for the batch with this ticket */
+  public boolean isCancelled(long ticket) {
+    return cancelled || (int) (ticket >>> 32) != generation;
+  }
+  
+  /**
+   * Waits for the batch with the next ticket, and adds its verdicts to the totals.
+   * Batches of other generations that still come in are dropped.
+   */
+  public void takeNext() throws InterruptedException {
+    while(pending.isEmpty() || pending.peek().ticket != next) {
+      pending.add(done.take());
+      done.drainTo(pending);
+      while(!pending.isEmpty() && pending.peek().ticket < next) // Earlier generations have smaller tickets
+        pending.poll();
+    }
+    Batch b = pending.poll();
+    next++;
+    numTraces += b.numTraces;
+    numSat += b.numSat;
+  }
+  
+  /** @return Whether every batch that took a ticket was taken, so that takeNext waits for new ones */
+  public boolean caughtUp() { return next == tickets.get(); }
+  
+  public int getNumTraces() { return numTraces; }
+  public int getNumSat() { return numSat; }
+}
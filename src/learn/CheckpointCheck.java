@@ -0,0 +1,105 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+package learn;
+
+import java.io.*;
+import java.util.*;
+
+import parser.*;
+import smcmdp.*;
+import smcmdp.policy.*;
+import smcmdp.reward.*;
+
+/**
+ * Checks that a checkpoint of a BoundedPolicy resumes to the policy that was
+ * learned. Blocks of random rewards update a bounded policy, which evicts
+ * states, some of them rewarded in the same block, and each block is
+ * recorded; the log is compacted along the way. The policy read back from
+ * the checkpoint must hold the same states with the same distributions, and
+ * stay within the capacity.
+ * 
+ * The program exits with status 1 if the policies differ.
+ * 
+ * Usage: java learn.CheckpointCheck [blocks] [capacity]
+ */
+public class CheckpointCheck {
+  
+  public static void main(String[] args) throws Exception {
+    int blocks = (args.length > 0) ? Integer.parseInt(args[0]) : 60;
+    int capacity = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+    int pool = 5 * capacity, perBlock = capacity / 2;
+    
+    File base = File.createTempFile("checkpoint-", ".policy");
+    base.deleteOnExit();
+    new File(base.getPath() + ".log").deleteOnExit();
+    
+    Random random = new Random(1);
+    BoundedPolicy policy = new BoundedPolicy(capacity);
+    Rewards rewards = new Rewards();
+    StateCodec codec = new StateCodec(new VarList()); // The states are not of a model, only their single word counts
+    LearningCheckpoint checkpoint = new LearningCheckpoint(base, false, codec);
+    for(int i = 0; i < blocks; i++) {
+      for(int j = 0; j < perBlock; j++) {
+        long k = random.nextInt(pool);
+        int n = 1 + (int) (k % 4);
+        int id = rewards.initialise(new PackedState(k), n);
+        int c = random.nextInt(n);
+        if(random.nextBoolean()) rewards.addSat(id, c, 1 + random.nextInt(3));
+        else                     rewards.addNSat(id, c, 1 + random.nextInt(3));
+      }
+      checkpoint.awaitPolicy();
+      policy.update(rewards);
+      checkpoint.record(i + 1, policy, rewards, random.nextLong());
+      rewards.reset();
+    }
+    checkpoint.close();
+    
+    BoundedPolicy resumed = new BoundedPolicy(capacity);
+    LearningCheckpoint.Resumed r = LearningCheckpoint.resume(base, resumed, codec);
+    boolean ok = r != null && r.blocks == blocks;
+    if(!ok)
+      System.out.println("Resumed after " + ((r == null) ? "no" : "" + r.blocks) + " blocks, not " + blocks);
+    if(resumed.numStates() != policy.numStates() || resumed.numStates() > capacity) {
+      System.out.println("Resumed " + resumed.numStates() + " states, learned " + policy.numStates() + " with a capacity of " + capacity);
+      ok = false;
+    }
+    for(PackedState s: policy.states()) {
+      StatePolicy p = resumed.getStatePolicy(s);
+      if(p == null || !Arrays.equals(p.getPolicy(), policy.getStatePolicy(s).getPolicy())) {
+        System.out.println("State " + s + " learned as " + policy.getStatePolicy(s) + ", resumed as " + p);
+        ok = false;
+        break;
+      }
+    }
+    System.out.println(ok ? "Resumed " + resumed.numStates() + " states as learned" : "Checkpoint differs from the learned policy");
+    if(!ok) System.exit(1);
+  }
+}
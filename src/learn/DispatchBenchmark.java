@@ -0,0 +1,183 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Measures how job dispatch scales with the number of threads, comparing the
+ * JobDispatcher with the lock and condition protocol LearnMDP used before.
+ * Jobs are synthetic: each spins for about the given number of microseconds,
+ * so that dispatch overhead is not hidden behind trace generation.
+ * 
+ * Unvalidated: it has only been run on a single core, where it cannot show
+ * whether the JobDispatcher scales better than the lock under contention.
+ * It still needs numbers from a multi-core machine.
+ * 
+ * Usage: java learn.DispatchBenchmark [max_threads [rounds [jobs_per_request [job_micros]]]]
+ */
+public class DispatchBenchmark {
+  
+  /** The dispatch protocol under test, as seen by the master and the workers. */
+  interface Dispatch {
+    void runRound(int numJobs) throws InterruptedException;
+    int claim(int limit) throws InterruptedException;
+    void finish(int numJobs);
+    void stop();
+  }
+  
+  static class LockFree implements Dispatch {
+    JobDispatcher jobs = new JobDispatcher();
+    public void runRound(int numJobs) throws InterruptedException { jobs.runRound(numJobs); }
+    public int claim(int limit) throws InterruptedException { return jobs.claim(limit); }
+    public void finish(int numJobs) { jobs.finish(numJobs); }
+    public void stop() { jobs.stop(); }
+  }
+  
+  /** The protocol of LearnMDP.requestJobs and addJobs before the JobDispatcher. */
+  static class Locked implements Dispatch {
+    ReentrantLock jobLock = new ReentrantLock();
+    Condition jobsAvailable = jobLock.newCondition();
+    Condition jobsDone = jobLock.newCondition();
+    int numJobs = 0;
+    int numWorkersWorking = 0;
+    boolean done = false;
+    
+    public void runRound(int n) throws InterruptedException {
+      jobLock.lock();
+      numJobs = n;
+      jobsAvailable.signalAll();
+      do {
+        jobsDone.await();
+      } while(numWorkersWorking > 0 || numJobs > 0);
+      jobLock.unlock();
+    }
+    
+    public int claim(int limit) throws InterruptedException {
+      jobLock.lock();
+      jobsDone.signal();
+      while(numJobs == 0 && !done)
+        jobsAvailable.await();
+      if(done) {
+        jobsAvailable.signalAll();
+        jobLock.unlock();
+        return -1;
+      }
+      int result = Math.min(numJobs, limit);
+      numJobs -= result;
+      numWorkersWorking++;
+      jobLock.unlock();
+      return result;
+    }
+    
+    public void finish(int n) {
+      jobLock.lock();
+      numWorkersWorking--;
+      jobsDone.signal();
+      jobLock.unlock();
+    }
+    
+    public void stop() {
+      jobLock.lock();
+      done = true;
+      jobsAvailable.signalAll();
+      jobLock.unlock();
+    }
+  }
+  
+  static volatile long sink;
+  
+  static void work(long nanos) {
+    long end = System.nanoTime() + nanos;
+    long x = 0;
+    while(System.nanoTime() < end)
+      x++;
+    sink += x;
+  }
+  
+  /**
+   * @return The time in milliseconds to run the rounds with the given number of threads.
+   */
+  static long run(final Dispatch d, int numThreads, int rounds, final int jobsPerRequest, final long jobNanos) throws Exception {
+    Thread[] threads = new Thread[numThreads];
+    for(int t = 0; t < numThreads; t++) {
+      threads[t] = new Thread(new Runnable() {
+        public void run() {
+          try {
+            while(true) {
+              int n = d.claim(jobsPerRequest);
+              if(n == -1) return;
+              for(int j = 0; j < n; j++)
+                work(jobNanos);
+              d.finish(n);
+            }
+          } catch(InterruptedException e) { }
+        }
+      });
+      threads[t].start();
+    }
+    
+    long start = System.currentTimeMillis();
+    for(int r = 0; r < rounds; r++)
+      d.runRound(numThreads * jobsPerRequest); // Mini-blocks as in LearnMDP.learn
+    long time = System.currentTimeMillis() - start;
+    
+    d.stop();
+    for(Thread t : threads)
+      t.join();
+    return time;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int maxThreads     = (args.length > 0) ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+    int rounds         = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+    int jobsPerRequest = (args.length > 2) ? Integer.parseInt(args[2]) : 50;
+    long jobNanos      = 1000L * ((args.length > 3) ? Integer.parseInt(args[3]) : 5);
+    
+    run(new Locked(), maxThreads, rounds / 10, jobsPerRequest, jobNanos);   // Warm up
+    run(new LockFree(), maxThreads, rounds / 10, jobsPerRequest, jobNanos);
+    
+    // Powers of two, then maxThreads itself
+    List<Integer> threadCounts = new ArrayList<Integer>();
+    for(int t = 1; t < maxThreads; t *= 2)
+      threadCounts.add(t);
+    threadCounts.add(maxThreads);
+    
+    System.out.println("threads, lock (ms), lock-free (ms), speedup");
+    for(int t: threadCounts) {
+      long locked = run(new Locked(), t, rounds, jobsPerRequest, jobNanos);
+      long lockFree = run(new LockFree(), t, rounds, jobsPerRequest, jobNanos);
+      System.out.println(t + ", " + locked + ", " + lockFree + ", " + String.format("%.2f", 1.0 * locked / Math.max(lockFree, 1)));
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import smcmdp.*;
+import parser.State;
+import parser.ast.*;
+import prism.*;
+import simulator.*;
+
+/**
+ * The reachable state space of a model, explored once through PRISM and stored
+ * in compressed sparse row form: the choices of state s are getFirstChoice(s)
+ * and on, and the transitions of choice c are transitionStart[c] and on, each
+ * with a target state index and a cumulative probability within its choice.
+ * States are kept packed by the model's StateCodec, so they double as policy keys.
+ * 
+ * Traces can then be generated by array lookups only. The arrays can be cached
+ * in a file, which is memory-mapped when the same model is run again.
+ */
+public class ExplicitModel {
+  public static final int MAX_STATES = 10000000; // Give up exploring beyond this
+  
+  protected static final long MAGIC = 0x534d43455850L; // "SMCEXP"
+  protected static final int VERSION = 1;
+  protected static final int HEADER_SIZE = 64;
+  
+  protected StateCodec codec;
+  protected int numStates;
+  protected int numChoices;
+  protected int numTransitions;
+  protected int initialState;
+  
+  protected LongBuffer words;           // Packed states, numWords per state
+  protected IntBuffer choiceStart;      // First choice of each state, numStates + 1 entries
+  protected IntBuffer transitionStart;  // First transition of each choice, numChoices + 1 entries
+  protected IntBuffer target;           // Target state of each transition
+  protected DoubleBuffer cumulative;    // Probabilities within each choice summed up to each transition
+  
+  protected ExplicitModel(StateCodec codec, int numStates, int numChoices, int numTransitions, int initialState) {
+    this.codec = codec;
+    this.numStates = numStates;
+    this.numChoices = numChoices;
+    this.numTransitions = numTransitions;
+    this.initialState = initialState;
+  }
+  
+  public int getNumStates() { return numStates; }
+  public int getInitialState() { return initialState; }
+  
+  public int getNumChoices(int s) { return choiceStart.get(s + 1) - choiceStart.get(s); }
+  
+  /**
+   * Picks a transition of a choice of the state like Choice.getIndexByProbabilitySum.
+   * @return The index of the transition within the choice
+   */
+  public int getIndexByProbabilitySum(int s, int choice, double x) {
+    int c = choiceStart.get(s) + choice;
+    int first = transitionStart.get(c);
+    int lo = first, hi = transitionStart.get(c + 1) - 1;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(x >= cumulative.get(mid)) lo = mid + 1;
+      else                         hi = mid;
+    }
+    return lo - first;
+  }
+  
+  public int getTarget(int s, int choice, int offset) {
+    return target.get(transitionStart.get(choiceStart.get(s) + choice) + offset);
+  }
+  
+  public PackedState getKey(int s) {
+    int n = codec.getNumWords();
+    if(n == 1)
+      return new PackedState(words.get(s));
+    long[] more = new long[n - 1];
+    for(int w = 1; w < n; w++)
+      more[w - 1] = words.get(s * n + w);
+    return new PackedState(words.get(s * n), more);
+  }
+  
+  /** @return The value of the variable at the state, 0 or 1 for booleans */
+  public int getValue(int s, int var) {
+    return codec.decodeValue(var, words.get(s * codec.getNumWords() + codec.getWordIndex(var)));
+  }
+  
+  /**
+   * Gets the explicit model, from the cache file if it is there and was made
+   * from the same model file, or else by exploring the model and then
+   * writing the cache file.
+   * @param cache The cache file, or null not to cache the model
+   */
+  public static ExplicitModel get(Prism prism, ModulesFile modulesFile, File modelFile, File cache) throws PrismException {
+    Explorer explorer = new Explorer(prism, modulesFile);
+    ExplicitModel model = null;
+    if(cache != null && cache.exists()) {
+      try {
+        model = load(cache, modelFile, explorer.codec);
+      } catch(IOException e) {
+        System.err.println("*** WARNING *** Could not read explicit model from " + cache + ": " + e.getMessage());
+      }
+      if(model != null) {
+        if(Conf.DEBUG_FLAG) System.out.println("Loaded explicit model from " + cache + "...");
+        return model;
+      }
+    }
+    
+    model = explorer.explore();
+    if(cache != null) {
+      try {
+        model.save(cache, modelFile);
+        if(Conf.DEBUG_FLAG) System.out.println("Saved explicit model to " + cache + "...");
+      } catch(IOException e) {
+        System.err.println("*** WARNING *** Could not write explicit model to " + cache + ": " + e.getMessage());
+      }
+    }
+    return model;
+  }
+  
+  protected long[] sections() {
+    long[] offsets = new long[6];
+    offsets[0] = HEADER_SIZE;
+    offsets[1] = offsets[0] + 8L * numStates * codec.getNumWords(); // words
+    offsets[2] = offsets[1] + 8L * numTransitions;                  // cumulative
+    offsets[3] = offsets[2] + 4L * (numStates + 1);                 // choiceStart
+    offsets[4] = offsets[3] + 4L * (numChoices + 1);                // transitionStart
+    offsets[5] = offsets[4] + 4L * numTransitions;                  // target
+    return offsets;
+  }
+  
+  protected static ByteBuffer section(ByteBuffer b, long from, long to) {
+    ByteBuffer s = b.duplicate();
+    s.limit((int) to);
+    s.position((int) from);
+    return s.slice();
+  }
+  
+  /**
+   * Writes the model into the cache file, and from then on reads it through
+   * the mapping of that file instead of from the heap.
+   */
+  public void save(File cache, File modelFile) throws IOException {
+    long[] offsets = sections();
+    if(offsets[5] > Integer.MAX_VALUE)
+      throw new IOException("Model too large to be mapped");
+    
+    RandomAccessFile f = new RandomAccessFile(cache, "rw");
+    try {
+      f.setLength(0);
+      MappedByteBuffer b = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, offsets[5]);
+      b.putLong(0, MAGIC);
+      b.putInt(8, VERSION);
+      b.putInt(12, codec.getNumVars());
+      b.putLong(16, modelFile.length());
+      b.putLong(24, modelFile.lastModified());
+      b.putInt(32, codec.getNumWords());
+      b.putInt(36, numStates);
+      b.putInt(40, numChoices);
+      b.putInt(44, numTransitions);
+      b.putInt(48, initialState);
+      
+      words.rewind();            section(b, offsets[0], offsets[1]).asLongBuffer().put(words);
+      cumulative.rewind();       section(b, offsets[1], offsets[2]).asDoubleBuffer().put(cumulative);
+      choiceStart.rewind();      section(b, offsets[2], offsets[3]).asIntBuffer().put(choiceStart);
+      transitionStart.rewind();  section(b, offsets[3], offsets[4]).asIntBuffer().put(transitionStart);
+      target.rewind();           section(b, offsets[4], offsets[5]).asIntBuffer().put(target);
+      b.force();
+      map(b);
+    } finally {
+      f.close();
+    }
+  }
+  
+  /**
+   * @return The model in the cache file, or null if the file was made from
+   * another model, or from another version of the model file.
+   */
+  public static ExplicitModel load(File cache, File modelFile, StateCodec codec) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(cache, "r");
+    try {
+      if(f.length() < HEADER_SIZE || f.length() > Integer.MAX_VALUE)
+        return null;
+      MappedByteBuffer b = f.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, f.length());
+      if(b.getLong(0) != MAGIC || b.getInt(8) != VERSION || b.getInt(12) != codec.getNumVars() ||
+         b.getLong(16) != modelFile.length() || b.getLong(24) != modelFile.lastModified() ||
+         b.getInt(32) != codec.getNumWords())
+        return null;
+      
+      ExplicitModel model = new ExplicitModel(codec, b.getInt(36), b.getInt(40), b.getInt(44), b.getInt(48));
+      if(model.sections()[5] != f.length())
+        return null;
+      model.map(b);
+      return model;
+    } finally {
+      f.close(); // The mapping stays valid
+    }
+  }
+  
+  protected void map(ByteBuffer b) {
+    long[] offsets = sections();
+    words           = section(b, offsets[0], offsets[1]).asLongBuffer();
+    cumulative      = section(b, offsets[1], offsets[2]).asDoubleBuffer();
+    choiceStart     = section(b, offsets[2], offsets[3]).asIntBuffer();
+    transitionStart = section(b, offsets[3], offsets[4]).asIntBuffer();
+    target          = section(b, offsets[4], offsets[5]).asIntBuffer();
+  }
+  
+  /**
+   * Explores the reachable states of a model breadth-first, asking PRISM for
+   * the transitions of every state exactly once.
+   */
+  protected static class Explorer extends SimulatorEngine {
+    protected StateCodec codec;
+    
+    public Explorer(Prism prism, ModulesFile modulesFile) throws PrismException {
+      super(prism);
+      createNewOnTheFlyPath(modulesFile);
+      codec = new StateCodec(varList);
+    }
+    
+    public ExplicitModel explore() throws PrismException {
+      if(modelType == ModelType.CTMC)
+        throw new PrismException("Cannot simulate CTMCs. Sorry!");
+      
+      Map<PackedState, Integer> index = new HashMap<PackedState, Integer>();
+      List<State> queue = new ArrayList<State>();
+      List<PackedState> keys = new ArrayList<PackedState>();
+      int[] choiceStart = new int[1024];
+      int[] transitionStart = new int[1024];
+      int[] target = new int[1024];
+      double[] cumulative = new double[1024];
+      int numChoices = 0, numTransitions = 0;
+      
+      State initial = modulesFile.getDefaultInitialState();
+      PackedState initialKey = codec.encode(initial);
+      index.put(initialKey, 0);
+      queue.add(initial);
+      keys.add(initialKey);
+      
+      for(int s = 0; s < queue.size(); s++) {
+        State state = queue.get(s);
+        queue.set(s, null);                      // Explored, only its index is needed from now on
+        updater.calculateTransitions(state, transitionList);
+        
+        if(s + 1 >= choiceStart.length)
+          choiceStart = Arrays.copyOf(choiceStart, 2 * choiceStart.length);
+        choiceStart[s] = numChoices;
+        for(int i = 0; i < transitionList.getNumChoices(); i++) {
+          Choice choice = transitionList.getChoice(i);
+          if(numChoices + 1 >= transitionStart.length)
+            transitionStart = Arrays.copyOf(transitionStart, 2 * transitionStart.length);
+          transitionStart[numChoices++] = numTransitions;
+          
+          double d = 0.0;
+          for(int j = 0; j < choice.size(); j++) {
+            if(numTransitions == target.length) {
+              target = Arrays.copyOf(target, 2 * target.length);
+              cumulative = Arrays.copyOf(cumulative, 2 * cumulative.length);
+            }
+            State next = choice.computeTarget(j, state);
+            PackedState key = codec.encode(next);
+            Integer t = index.get(key);
+            if(t == null) {
+              if(queue.size() == MAX_STATES)
+                throw new PrismException("Model has more than " + MAX_STATES + " reachable states");
+              t = queue.size();
+              index.put(key, t);
+              queue.add(next);
+              keys.add(key);
+            }
+            d += choice.getProbability(j);      // Summed in the same order as Choice.getIndexByProbabilitySum
+            cumulative[numTransitions] = d;
+            target[numTransitions++] = t;
+          }
+        }
+      }
+      int numStates = queue.size();
+      choiceStart[numStates] = numChoices;
+      transitionStart[numChoices] = numTransitions;
+      
+      int numWords = codec.getNumWords();
+      long[] words = new long[numStates * numWords];
+      for(int s = 0; s < numStates; s++)
+        for(int w = 0; w < numWords; w++)
+          words[s * numWords + w] = keys.get(s).getWord(w);
+      
+      ExplicitModel model = new ExplicitModel(codec, numStates, numChoices, numTransitions, 0);
+      model.words = LongBuffer.wrap(words);
+      model.choiceStart = IntBuffer.wrap(choiceStart, 0, numStates + 1).slice();
+      model.transitionStart = IntBuffer.wrap(transitionStart, 0, numChoices + 1).slice();
+      model.target = IntBuffer.wrap(target, 0, numTransitions).slice();
+      model.cumulative = DoubleBuffer.wrap(cumulative, 0, numTransitions).slice();
+      return model;
+    }
+  }
+}
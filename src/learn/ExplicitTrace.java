@@ -29,35 +29,39 @@
  * authors have been advised of the possibility of those damages.
  * ***********************************************************************************************/
 
-package smcmdp.reward;
+package learn;
 
-import java.util.concurrent.atomic.*;
+import java.util.*;
+
+import smcmdp.*;
 
 /**
- * The class for a single reward. Uses AtomicIntegers to implement
- * hardware level synchronisation when possible.
+ * Trace data of a trace through an explicit model: only the indices of the
+ * states are recorded, and values are read from the model's packed states.
+ * As for PathFull, the size is the number of transitions taken so far.
  */
-public class ChoiceReward {
-  private AtomicInteger sat;
-  private AtomicInteger nSat;
-  
-  public ChoiceReward() { this(0, 0); } 
+public class ExplicitTrace extends TraceData {
+  protected ExplicitModel model;
+  protected int[] vars;    // Model variable of each slot of the formula
+  protected int[] states;
+  protected int n;
   
-  public ChoiceReward(int sat, int nSat) {
-    this.sat = new AtomicInteger(sat);
-    this.nSat = new AtomicInteger(nSat);
+  public ExplicitTrace(CompiledFormula formula, ExplicitModel model) {
+    this.model = model;
+    this.vars = formula.vars();
+    this.states = new int[64];
+    this.n = 0;
   }
   
-  public void incrementSat() { sat.incrementAndGet(); }
-  public void incrementNSat() { nSat.incrementAndGet(); }
+  public void clear() { n = 0; }
   
-  public void addSat(int n) { sat.addAndGet(n); }
-  public void addNSat(int n) { nSat.addAndGet(n); }
-  
-  public int getSat() { return sat.get(); }
-  public int getNSat() { return nSat.get(); }
+  public void record(int state) {
+    if(n == states.length)
+      states = Arrays.copyOf(states, 2 * states.length);
+    states[n++] = state;
+  }
   
-  public void reset() { sat.set(0); nSat.set(0); }
+  public int size() { return n - 1; }
   
-  public String toString() { return "(" + sat + ", " + nSat + ")"; }
-}
\ No newline at end of file
+  public double value(int pos, int slot) { return model.getValue(states[pos], vars[slot]); }
+}
@@ -0,0 +1,101 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.io.*;
+
+import smcmdp.*;
+import parser.*;
+import parser.ast.ModulesFile;
+import prism.*;
+import simulator.*;
+import parser.State;
+
+/**
+ * Checks formulae compiled by CompiledFormula against the interpreter in
+ * Satisfaction, on traces of a model that PRISM simulates with uniformly
+ * random choices. The first trace is the initial state alone, as a trace is
+ * when the initial state deadlocks, so that the rules for the last position
+ * are checked on a trace without transitions. The other traces run for as
+ * many transitions as the formula requires.
+ * 
+ * The program exits with status 1 at the first trace on which both differ.
+ * 
+ * Usage: java learn.FormulaCheck model formula [traces]
+ */
+public class FormulaCheck {
+  
+  /**
+   * @return Whether the compiled formula agrees with the interpreter on the path
+   */
+  static boolean agree(Formula formula, CompiledFormula compiled, PathFull path, VarList vars) {
+    SatResult interpreted = Satisfaction$.MODULE$.interpret(new Trace(path, vars), formula);
+    SatResult result = compiled.check(new PathData(compiled, path));
+    if(result.getSat() == interpreted.getSat() && result.getNSteps() == interpreted.getNSteps())
+      return true;
+    System.out.println("Compiled: " + result + ", interpreted: " + interpreted + ", on a trace of " + path.size() + " transitions");
+    return false;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    if(args.length < 2) {
+      System.out.println("Usage: java learn.FormulaCheck model formula [traces]");
+      System.exit(1);
+    }
+    int traces = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+    
+    PrismLog ll = new PrismPrintStreamLog(new PrintStream(new OutputStream(){ public void write(int b) {} }));
+    Prism p = new Prism(ll, ll);
+    p.initialise();
+    ModulesFile modulesFile = p.parseModelFile(new File(args[0]));
+    Formula formula = Parser$.MODULE$.parseFormula(LearnMDP.readFile(new File(args[1])));
+    VarList vars = modulesFile.createVarList();
+    CompiledFormula compiled = CompiledFormula$.MODULE$.compile(formula, vars);
+    if(compiled == null) {
+      System.out.println("The formula cannot be compiled, so there is nothing to check.");
+      return;
+    }
+    int traceSize = Satisfaction$.MODULE$.traceSize(formula) + 1;
+    
+    SimulatorEngine engine = new SimulatorEngine(p);
+    engine.createNewPath(modulesFile);
+    State initialState = modulesFile.getDefaultInitialState();
+    for(int t = 0; t < traces; t++) {
+      engine.initialisePath(initialState);
+      if(t > 0)
+        for(int i = 0; i < traceSize && engine.automaticTransition(); i++);
+      if(!agree(formula, compiled, engine.getPathFull(), vars))
+        System.exit(1);
+    }
+    System.out.println("Compiled and interpreted formula agree on " + traces + " traces.");
+  }
+}
@@ -0,0 +1,91 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+package learn;
+
+import smcmdp.*;
+
+/**
+ * Checks the interpreter in Satisfaction on formulae whose verdicts changed
+ * when <=> became equivalence, as it used to be decided as ==>, and when the
+ * relation "/=" that the parser makes was interpreted as inequality, as it
+ * used to be false with a "Can't interpret" message. The formulae only
+ * compare constants, so they need no model. Each case is printed with the
+ * verdict before and after the change.
+ * 
+ * The program exits with status 1 if a verdict is not the one after the change.
+ * 
+ * Usage: java learn.InterpreterCheck
+ */
+public class InterpreterCheck {
+  // Formula, verdict before, verdict after
+  static final Object[][] FORMULAE = {
+    { "(1 = 2) <=> (1 = 2)", true,  true  },
+    { "(1 = 2) <=> (1 = 1)", true,  false },
+    { "(1 = 1) <=> (1 = 2)", false, false },
+    { "(1 = 1) <=> (1 = 1)", true,  true  },
+    { "~((1 = 2) <=> (1 = 1))", false, true },
+    { "1 /= 2", false, true  },
+    { "1 /= 1", false, false },
+    { "~(1 /= 2)", true, false },
+  };
+  
+  // Left and right side as satisfied and number of steps, result before, result after
+  static final Object[][] RESULTS = {
+    { false, 2, true, 5, "[true, 2]", "[false, 5]" },
+    { true, 5, false, 2, "[false, 5]", "[false, 5]" },
+    { true, 3, true, 7, "[true, 7]", "[true, 7]" },
+    { false, 3, false, 7, "[true, 3]", "[true, 7]" },
+  };
+  
+  public static void main(String[] args) {
+    boolean ok = true;
+    System.out.println("formula, before, after, now");
+    for(Object[] c: FORMULAE) {
+      Formula f = Parser$.MODULE$.parseFormula((String) c[0]);
+      boolean sat = Satisfaction$.MODULE$.interpret(new Trace(), f).getSat();
+      System.out.println(c[0] + ", " + c[1] + ", " + c[2] + ", " + sat);
+      ok &= sat == (Boolean) c[2];
+    }
+    
+    System.out.println("left <=> right, before, after, now");
+    for(Object[] c: RESULTS) {
+      SatResult left = new SatResult((Boolean) c[0], (Integer) c[1]), right = new SatResult((Boolean) c[2], (Integer) c[3]);
+      String name = left + " <=> " + right;
+      String result = left.$less$eq$greater(right).toString();
+      System.out.println(name + ", " + c[4] + ", " + c[5] + ", " + result);
+      ok &= result.equals(c[5]);
+    }
+    if(!ok) {
+      System.out.println("The interpreter differs from the verdicts after the change");
+      System.exit(1);
+    }
+  }
+}
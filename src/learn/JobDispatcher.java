@@ -0,0 +1,155 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out jobs (traces to generate) to worker threads in rounds. The master
+ * starts a round with a number of jobs, workers claim them in chunks with a
+ * compare-and-set, and report them as finished once their results are in.
+ * The round is over once every job of it is finished, so rounds keep the
+ * synchronisation points of mini-blocks without a lock on the claim path.
+ * 
+ * Workers that find no jobs left wait on a Phaser for the next round to start.
+ * 
+ * Whether a round is over is only decided by the phase of finished, compared
+ * to the number of rounds the master started: the count of unfinished jobs
+ * drops to zero before the last worker arrives, so it cannot tell.
+ */
+public class JobDispatcher {
+  protected AtomicInteger remaining;  // Jobs of the current round that were not claimed yet
+  protected AtomicInteger unfinished; // Jobs of the current round that were not finished yet
+  protected Phaser started;           // Advances whenever a round starts, or the dispatcher stops
+  protected Phaser finished;          // Advances whenever a round is over
+  protected int rounds;               // Rounds started, wrapping as phases do; only used by the master
+  protected volatile boolean done;
+  
+  public JobDispatcher() {
+    remaining = new AtomicInteger(0);
+    unfinished = new AtomicInteger(0);
+    started = new Phaser(1);  // Only the master arrives
+    finished = new Phaser(1); // Only the worker finishing a round arrives
+    rounds = 0;
+    done = false;
+  }
+  
+  /**
+   * Starts a round of jobs without waiting for it to be over. The previous
+   * round must be over, see idle.
+   * @return The round, to wait for with awaitRound.
+   */
+  public int startRound(int numJobs) {
+    assert(idle());
+    int round = rounds;
+    rounds = (rounds + 1) & Integer.MAX_VALUE; // Phases wrap to zero after Integer.MAX_VALUE
+    if(numJobs <= 0) {
+      finished.arrive();
+      return round;
+    }
+    unfinished.set(numJobs);
+    remaining.set(numJobs);
+    started.arrive();
+    return round;
+  }
+  
+  public void awaitRound(int round) throws InterruptedException {
+    finished.awaitAdvanceInterruptibly(round);
+  }
+  
+  /**
+   * Starts a round of jobs and waits until all of them are finished.
+   */
+  public void runRound(int numJobs) throws InterruptedException {
+    awaitRound(startRound(numJobs));
+  }
+  
+  /** @return Whether every round started is over, so that all their claimed jobs are finished */
+  public boolean idle() { return finished.getPhase() == rounds; }
+  
+  /**
+   * Claims up to limit jobs of the current round, waiting for a round to start if needed.
+   * @return The number of jobs claimed, to be reported with finish, or -1 once stopped.
+   */
+  public int claim(int limit) throws InterruptedException {
+    while(true) {
+      int phase = started.getPhase(); // Read before the jobs, so no round can start unnoticed
+      if(done)
+        return -1;
+      int r = remaining.get();
+      if(r > 0) {
+        int n = Math.min(r, limit);
+        if(remaining.compareAndSet(r, r - n))
+          return n;
+      } else
+        started.awaitAdvanceInterruptibly(phase);
+    }
+  }
+  
+  /**
+   * Reports claimed jobs as finished. All their results must be in.
+   */
+  public void finish(int numJobs) {
+    if(unfinished.addAndGet(-numJobs) == 0)
+      finished.arrive();
+  }
+  
+  /**
+   * Drops the jobs of the current round that were not claimed yet. The round
+   * is over once the claimed ones are finished.
+   */
+  public void cancel() {
+    int r = remaining.getAndSet(0);
+    if(r > 0)
+      finish(r);
+  }
+  
+  /**
+   * Waits until the last round started is over, so that every job claimed
+   * in it is finished. Rounds before it are over already, see startRound.
+   */
+  public void awaitIdle() throws InterruptedException {
+    if(!idle())
+      finished.awaitAdvanceInterruptibly((rounds - 1) & Integer.MAX_VALUE);
+  }
+  
+  /**
+   * Makes workers stop claiming jobs.
+   */
+  public void stop() {
+    done = true;
+    started.arrive();
+  }
+  
+  public boolean isDone() { return done; }
+}
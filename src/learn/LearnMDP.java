@@ -39,16 +39,15 @@ import smcmdp.reward.*;
 import java.io.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
-import java.util.concurrent.locks.*;
 import java.util.*;
 
 import modelchecking.*;
 import modelchecking.Result;
 
 import smcmdp.policy.*;
+import smcmdp.policy.update.*;
 import parser.ast.*;
 import prism.*;
-import umontreal.iro.lecuyer.probdist.*;
 
 public class LearnMDP {
   
@@ -56,44 +55,45 @@ public class LearnMDP {
   
   protected ModulesFile modulesFile;
   protected Formula formula;
+  protected boolean formulaCompiled;     // Whether threads check traces with a compiled formula
+  protected StateCodec codec;            // Packs states as the threads do, for policy files
   
   // Thread information
-  protected int numJobs;
-  protected int numWorkersWorking;
+  protected JobDispatcher jobs;
   protected List<TraceGeneratorThread> workers;
   
   //Counts for each block
   protected AtomicInteger sat;
   protected AtomicInteger fal;
   // Results for model-checking
-  protected BlockingQueue<SatResult> results;
+  protected BatchedResults results;
   
   protected boolean deterministic;
-  protected Policy policy;
+  protected volatile Policy policy; // Swapped in one go when pipelining
   protected DeterministicPolicy deterministicPolicy;
   
-  protected Rewards rewards;
+  protected volatile Rewards rewards;
   
-  // Flag used to kill threads
-  protected boolean done;
+  protected ExplicitModel explicitModel; // The explored model, if simulating explicitly
   
-  protected ReentrantLock jobLock;
-  protected Condition jobsAvailable;
-  protected Condition jobsDone;
+  protected LearningCheckpoint checkpoint;
+  protected int firstBlock;              // More than 0 when resuming
+  protected boolean resumed;
   
   protected Random seedGenerator;
   
   public LearnMDP(Prism prism, ModulesFile modulesFile, Formula formula) throws Exception {
     this.prism = prism; this.modulesFile = modulesFile; this.formula = formula;
     
+    // Threads compile the formula each for themselves, this only finds out whether they can
+    this.formulaCompiled = CompiledFormula$.MODULE$.compile(formula, modulesFile.createVarList()) != null;
+    this.codec = new StateCodec(modulesFile.createVarList());
+    
     this.workers = new LinkedList<TraceGeneratorThread>();
     
-    this.jobLock = new ReentrantLock();
-    this.jobsAvailable = this.jobLock.newCondition();
-    this.jobsDone      = this.jobLock.newCondition();
+    this.jobs = new JobDispatcher();
     
     this.deterministic = false;
-    this.done = false;
     
     this.seedGenerator = new Random(new Random().nextLong()); // huzzah
     
@@ -104,9 +104,19 @@ public class LearnMDP {
   public void resetCounts() { sat.set(0); fal.set(0); }
   
   public synchronized int nextRNGSeed() { return seedGenerator.nextInt(); }
+  
+  /**
+   * Reseeds the generator of RNG seeds, so that a run resumed from a checkpoint
+   * draws the same seeds as this one from now on.
+   * @return The new seed
+   */
+  protected synchronized long reseed() {
+    long seed = seedGenerator.nextLong();
+    seedGenerator = new Random(seed);
+    return seed;
+  }
     
   public void startThreads(int numThreads, boolean reward) {
-    numWorkersWorking = 0;
     for(int i = 0; i < numThreads; i++){
       TraceGeneratorThread t = new TraceGeneratorThread(this);
       workers.add(t);
@@ -115,59 +125,92 @@ public class LearnMDP {
   }
   
   public void setThreadMode(boolean reward) {
-    if(reward) results = null;
-    else       results = new LinkedBlockingDeque<SatResult>();
+    if(reward)               results = null;
+    else if(results == null) results = new BatchedResults(); // Each SMC run resets it for a new generation
       
     for(TraceGeneratorThread t: workers)
-      t.setResultQueue(results);
+      t.setResults(results);
   }
   
   public void stopThreads(){
-    jobLock.lock();
-    done = true;
-    jobsAvailable.signalAll();
+    jobs.stop();
     workers.clear();
-    jobLock.unlock();
+  }
+  
+  protected Policy newPolicy() throws IOException {
+    if(Conf.MAPPED_POLICY_FLAG)      return new MappedPolicy(new File(Conf.MAPPED_POLICY_DIR));
+    if(Conf.FLAT_POLICY_FLAG)        return new FlatPolicy();
+    if(Conf.BOUNDED_POLICY_SIZE > 0) return new BoundedPolicy(Conf.BOUNDED_POLICY_SIZE);
+    return new Policy();
+  }
+  
+  /**
+   * Continues from the checkpoint in the given file, if there is one. This has
+   * to happen before threads are started, since it restores their seeds.
+   * @return Whether there was a checkpoint
+   */
+  public boolean resume(File file) throws IOException {
+    Policy p = newPolicy();
+    LearningCheckpoint.Resumed r = LearningCheckpoint.resume(file, p, codec);
+    if(r == null)
+      return false;
+    this.policy = p;
+    this.firstBlock = r.blocks;
+    if(r.seed != null) this.seedGenerator = new Random(r.seed);
+    this.resumed = true;
+    return true;
   }
   
   public long learn(int numTraces, int numBlocks) throws Exception {
-    this.policy = new Policy();
+    if(!resumed) this.policy = newPolicy();
     this.rewards = new Rewards();
+    if(Conf.LEARN_CHECKPOINT != null) checkpoint = new LearningCheckpoint(new File(Conf.LEARN_CHECKPOINT), resumed, codec);
+    
+    // When pipelining, the next policy is computed in the background from the
+    // rewards of the last block, while workers fill the other rewards
+    ExecutorService updater = (Conf.PIPELINE_FLAG) ? Executors.newSingleThreadExecutor() : null;
+    Future<Policy> nextPolicy = null;
+    Rewards spareRewards = (Conf.PIPELINE_FLAG) ? new Rewards() : null;
     
     long updateTime = 0;
     
     // Bayes factor for learning
-    BetaDist betaDist = new BetaDist(Conf.ALPHA, Conf.BETA);
     double LEARN_THETA = Math.min(Conf.THETA + Conf.IOTA, 1);
-    double PI1 = betaDist.cdf(LEARN_THETA);
+    BetaCdf posterior = new BetaCdf(Conf.ALPHA, Conf.BETA, LEARN_THETA); // Updated as the counts grow
+    double PI1 = posterior.getCdf();
     double prior = PI1 / (1-PI1);
     
     if(Conf.DEBUG_FLAG) System.out.println(" Block[#]{# satisfying traces, # falsifying traces}");
-    for(int i = 0; i < numBlocks; i++){               // Run nBlocks blocks...
-      jobLock.lock();
+    for(int i = firstBlock; i < numBlocks; i++){      // Run nBlocks blocks...
       int tracesRun = 0;
       while(tracesRun < numTraces){ // Synchronise periodically to avoid bias
         int miniBlock = Math.min(numTraces - tracesRun, Conf.NUM_THREADS*Conf.NUM_JOBS_PER_REQUEST);
         tracesRun = tracesRun + miniBlock;
         //if(Conf.DEBUG_FLAG) System.out.print("("+miniBlock+", "+tracesRun+") ");
-        addJobs(miniBlock);
-        do {
-          jobsDone.await();
-        } while(numWorkersWorking > 0);
+        jobs.runRound(miniBlock);
         
         // If we are not using Bayes factor heuristic for learning
         // skip that part of the loop entirely
         if(!Conf.BAYES_LEARN_FLAG)
           continue;
-        betaDist = new BetaDist(sat.get() + Conf.ALPHA, fal.get() + Conf.BETA);
-        double bayesFactor = prior * (1.0 / betaDist.cdf(LEARN_THETA) - 1);
+        posterior.moveTo(sat.get() + Conf.ALPHA, fal.get() + Conf.BETA);
+        double bayesFactor = prior * posterior.getComplement() / posterior.getCdf();
         
         // Only check for positive evidence of refuting P<=\theta (\phi)
         // It is normal for initial policies to succeed very rarely, and being fake evidence for the above assertion
         if(bayesFactor > Conf.LEARN_T) {
           if(Conf.DEBUG_FLAG) System.out.print(" Block["+i+"]{"+ sat +", " + fal +"} ");
           if(Conf.DEBUG_FLAG) System.out.println("Stopped learning due to Bayes factor learning heuristic...");
-          jobLock.unlock();
+          if(updater != null) {
+            if(nextPolicy != null) { // Serially, this update would be done already
+              Policy previous = policy;
+              policy = nextPolicy.get();
+              if(checkpoint != null) checkpoint.awaitPolicy();
+              previous.release();
+            }
+            updater.shutdown();
+          }
+          if(checkpoint != null) checkpoint.close();
           return updateTime;
         }
       }
@@ -175,49 +218,112 @@ public class LearnMDP {
       if(Conf.DEBUG_FLAG) System.out.print(" Block["+i+"]{"+ sat +", " + fal +"} ");
       // Reset satisfaction/falsification counts
       resetCounts();
-      assert(numJobs == 0);
+      assert(jobs.idle());
       long startUpdate = System.currentTimeMillis();
       if(Conf.DEBUG_FLAG) System.out.print("1");
       
-      // Update policy with rewards
-      policy.update(rewards);
-      
-      if(Conf.DEBUG_FLAG) System.out.print("2");
-      updateTime += System.currentTimeMillis() - startUpdate;
-      // Reset rewards
-      this.rewards.reset();
+      if(updater == null) {
+        // Update policy with rewards
+        if(checkpoint != null) checkpoint.awaitPolicy(); // The last record may still read it
+        policy.update(rewards);
+        if(checkpoint != null) checkpoint.record(i + 1, policy, rewards, reseed());
+        
+        if(Conf.DEBUG_FLAG) System.out.print("2");
+        // Reset rewards
+        this.rewards.reset();
+      } else {
+        // Publish the policy computed during this block, and compute the next one during the next block
+        Policy spare = null;               // The policy before, whose storage is reused
+        if(nextPolicy != null) {
+          spare = policy;
+          policy = nextPolicy.get();
+        }
+        if(Conf.DEBUG_FLAG) System.out.print("2");
+        nextPolicy = updater.submit(new PolicyUpdateTask(policy, spare, rewards, checkpoint, i + 1, reseed()));
+        Rewards filled = rewards;
+        rewards = spareRewards;            // Reset by the previous task
+        spareRewards = filled;
+      }
+      updateTime += System.currentTimeMillis() - startUpdate; // When pipelining, only the time spent waiting for updates
       
       if(Conf.DEBUG_FLAG) System.out.println("3");
       
-      jobLock.unlock();
       if(Conf.PROGRESS_FLAG && !Conf.DEBUG_FLAG)                System.out.print("+");
       if(Conf.PROGRESS_FLAG && !Conf.DEBUG_FLAG && i % 40 == 0) System.out.println();
     }
     
+    if(updater != null) {
+      long startUpdate = System.currentTimeMillis();
+      if(nextPolicy != null) {
+        Policy previous = policy;
+        policy = nextPolicy.get();
+        if(checkpoint != null) checkpoint.awaitPolicy();
+        previous.release();
+      }
+      updater.shutdown();
+      updateTime += System.currentTimeMillis() - startUpdate;
+    }
+    if(checkpoint != null) checkpoint.close();
+    
     if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println();
     return updateTime;
   }
   
+  /**
+   * Computes the next version of a policy from the rewards of a block, leaving
+   * the policy itself untouched, since workers keep simulating with it. States
+   * that workers added to the policy after it was copied are initialised as
+   * workers would have. The next policy is checkpointed, if asked to, and the
+   * rewards are reset afterwards. It reuses the storage of the spare policy,
+   * if there is one, which is no longer used.
+   */
+  protected static class PolicyUpdateTask implements Callable<Policy> {
+    protected Policy policy, spare;
+    protected Rewards rewards;
+    protected LearningCheckpoint checkpoint;
+    protected int blocks;
+    protected long seed;
+    
+    public PolicyUpdateTask(Policy policy, Policy spare, Rewards rewards, LearningCheckpoint checkpoint, int blocks, long seed) {
+      this.policy = policy;
+      this.spare = spare;
+      this.rewards = rewards;
+      this.checkpoint = checkpoint;
+      this.blocks = blocks;
+      this.seed = seed;
+    }
+    
+    public Policy call() throws Exception {
+      if(checkpoint != null) checkpoint.awaitPolicy(); // The spare may still be read
+      Policy next = policy.copy(spare);
+      for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++)
+        if(rewards.getState(id) != null)
+          next.initialise(rewards.getState(id), rewards.getNumChoices(id));
+      next.update(rewards);
+      if(checkpoint != null) checkpoint.record(blocks, next, rewards, seed);
+      rewards.reset();
+      return next;
+    }
+  }
+  
   public EstimationResult IntervalEstimation(double alpha, double beta,
       double delta, double coefficient) throws Exception {
     EstimationResult r = new EstimationResult();
     
+    results.reset(); // No batch of an earlier run is taken
+    
     int nTraces = 0;
     int nSatisfied = 0;
     double postProb = 0;
     do {
-      jobLock.lock();
-      if(numWorkersWorking == 0 && results.size() == 0){
-        assert(numJobs == 0);
-        addJobs(Conf.MODELCHECK_BLOCK_SIZE);
+      if(jobs.idle() || results.caughtUp()) { // Never wait for batches of a round that is over
+        jobs.awaitIdle();
+        jobs.startRound(Conf.MODELCHECK_BLOCK_SIZE);
       }
-      jobLock.unlock();
       
-      SatResult sat = results.take(); // Check whether it is satisfied
-      nTraces++;
-      
-      if(sat.getSat())
-        nSatisfied++;
+      results.takeNext(); // The stopping rule is only evaluated once per batch
+      nTraces = results.getNumTraces();
+      nSatisfied = results.getNumSat();
       
       r.p = (nSatisfied + alpha) / (nTraces + alpha + beta);
       r.t0 = r.p - delta;
@@ -231,14 +337,13 @@ public class LearnMDP {
         r.t1 = 2 * delta;
       }
       
-      BetaDist bd = new BetaDist(nSatisfied + alpha, nTraces - nSatisfied + beta);
-      
-      postProb = bd.cdf(r.t1) - bd.cdf(r.t0);
+      double a = nSatisfied + alpha, b = nTraces - nSatisfied + beta;
+      postProb = BetaCdf.cdf(a, b, r.t1) - BetaCdf.cdf(a, b, r.t0); // The interval moves, so in full
       
     } while (postProb < coefficient);
-    jobLock.lock();
-    numJobs = 0;
-    jobLock.unlock();
+    results.cancel();  // Workers drop the traces they are generating
+    jobs.cancel();
+    jobs.awaitIdle();
     
     r.n = nTraces;
     r.nSat = nSatisfied;
@@ -250,45 +355,43 @@ public class LearnMDP {
       double alpha, double beta) throws Exception {
     TestingResult r = new TestingResult();
     
+    results.reset(); // No batch of an earlier run is taken
+    
     int nTraces = 0;
     int nSatisfied = 0;
     
-    BetaDist betaDist = new BetaDist(alpha, beta);
-    double prior1 = betaDist.cdf(theta);
+    BetaCdf posterior = new BetaCdf(alpha, beta, theta); // Updated as the counts grow
+    double prior1 = posterior.getCdf();
     double prior = prior1 / (1-prior1);
     
     while(true) {
-      jobLock.lock();
-      if(numWorkersWorking == 0 && results.size() == 0){
-        assert(numJobs == 0);
-        addJobs(Conf.MODELCHECK_BLOCK_SIZE);
+      if(jobs.idle() || results.caughtUp()) { // Never wait for batches of a round that is over
+        jobs.awaitIdle();
+        jobs.startRound(Conf.MODELCHECK_BLOCK_SIZE);
       }
-      jobLock.unlock();
       
-      SatResult sat = results.take(); // Check whether it is satisfied
-      nTraces++;
-      
-      if(sat.getSat())
-        nSatisfied++;
+      results.takeNext(); // The stopping rule is only evaluated once per batch
+      nTraces = results.getNumTraces();
+      nSatisfied = results.getNumSat();
       
       if(nTraces < Conf.MIN_TRACES) // Do not make a decision until we have enough traces
         continue;
       
-      betaDist = new BetaDist(nSatisfied + alpha, nTraces - nSatisfied + beta);
+      posterior.moveTo(nSatisfied + alpha, nTraces - nSatisfied + beta);
       
-      r.bayesFactor = prior * (1.0 / betaDist.cdf(theta) - 1);
+      r.bayesFactor = prior * posterior.getComplement() / posterior.getCdf();
       
-      if(r.bayesFactor > T || (nTraces == Conf.MAX_TRACES && r.bayesFactor > 1)) {
+      if(r.bayesFactor > T || (nTraces >= Conf.MAX_TRACES && r.bayesFactor > 1)) {
         r.nullHypothesis = false;
         break;
-      } else if (r.bayesFactor < 1.0 / T ||  (nTraces == Conf.MAX_TRACES && r.bayesFactor < 1)) {
+      } else if (r.bayesFactor < 1.0 / T ||  (nTraces >= Conf.MAX_TRACES && r.bayesFactor < 1)) {
         r.nullHypothesis = true;
         break;
       }
     }
-    jobLock.lock();
-    numJobs = 0;
-    jobLock.unlock();
+    results.cancel();  // Workers drop the traces they are generating
+    jobs.cancel();
+    jobs.awaitIdle();
     
     r.n = nTraces;
     r.nSat = nSatisfied;
@@ -296,51 +399,51 @@ public class LearnMDP {
     return r;
   }
   
-  public void lock() { jobLock.lock(); }
-  
-  public void unlock() { jobLock.unlock(); } 
-  
+  /**
+   * Claims up to limit jobs, waiting for more if there are none.
+   * @return The number of jobs claimed, or -1 if the threads are being stopped.
+   */
   public int requestJobs(int limit) throws Exception {
-    jobLock.lock();
-    jobsDone.signal();
-    while (numJobs == 0 && !done)
-      jobsAvailable.await();
-
-    if (done) {
-      jobsAvailable.signalAll();
-      jobLock.unlock();
-      return -1;
-    }
-
-    int result = Math.min(numJobs, limit);
-    numJobs = numJobs - result;
-    numWorkersWorking++;
-    jobLock.unlock();
-    return result;
+    return jobs.claim(limit);
   }
   
   /**
-   * Call only with lock already acquired!
-   * @param numJobs
+   * Reports claimed jobs as finished, once their results or rewards are in.
    */
-  public void addJobs(int numJobs) {
-    jobLock.lock();
-    assert(this.numJobs == 0);
-    this.numJobs = numJobs;
-    jobsAvailable.signalAll();
-    jobLock.unlock();
+  public void finishJobs(int numJobs) {
+    jobs.finish(numJobs);
   }
   
   public void calculateDeterministicPolicy() { deterministicPolicy = policy.determinise(); }
   public void setDeterministic(boolean deterministic) { this.deterministic = deterministic; }
+  public void setPolicy(Policy policy) { this.policy = policy; this.deterministic = false; }
   
-  public boolean isDone() { return done; }
+  public boolean isDone() { return jobs.isDone(); }
 
   public Prism getPrism() { return prism; }
   public ModulesFile getModulesFile() { return modulesFile; }
   public Formula getFormula() { return formula; }
+  public boolean isFormulaCompiled() { return formulaCompiled; }
+  public StateCodec getCodec() { return codec; }
   
   public Rewards getRewards() { return rewards; }
+  public ExplicitModel getExplicitModel() { return explicitModel; }
+  
+  /**
+   * Explores the model, or loads it from the cache file given by the options,
+   * so that threads simulate it explicitly. If the model is too large, or not
+   * supported, threads keep simulating it with PRISM.
+   * @param modelFile The file the model was read from, which identifies cached models
+   */
+  public void loadExplicitModel(File modelFile) {
+    File cache = (Conf.EXPLICIT_CACHE == null) ? null : new File(Conf.EXPLICIT_CACHE);
+    try {
+      explicitModel = ExplicitModel.get(prism, modulesFile, modelFile, cache);
+    } catch(Exception e) {
+      System.err.println("*** WARNING *** Cannot simulate model explicitly: " + e.getMessage());
+      explicitModel = null;
+    }
+  }
   public Policy getPolicy() { return (deterministic) ? deterministicPolicy : policy; }
   
   
@@ -355,6 +458,17 @@ public class LearnMDP {
     int i = 0;
     for(TraceGeneratorThread t : workers)
       System.out.println(" - Thread[" + (i++) +"]{" + m2s(t.getTimeSimulating()) + "s, " + m2s(t.getTimeChecking()) + "s, " + m2s(t.getTimeRewarding()) + "s}");
+    
+    if(Conf.TRANSITION_CACHE_SIZE > 0) {
+      System.out.println(" - Thread[#] transition cache{hits, misses, evictions}");
+      i = 0;
+      for(TraceGeneratorThread t : workers) {
+        TransitionCache c = t.getTransitionCache();
+        if(c != null)
+          System.out.println(" - Thread[" + i + "] transition cache{" + c.getHits() + ", " + c.getMisses() + ", " + c.getEvictions() + "}");
+        i++;
+      }
+    }
   }
   
   /**
@@ -399,11 +513,13 @@ public class LearnMDP {
       System.exit(1);
     }
     
-    File formulaFile = new File(args[1]);
-    if(!formulaFile.exists()){
-      System.err.println("[ERROR] Formula file \""+ args[1] +"\" does not exist.");
-      System.exit(1);
-    }
+    String[] formulaNames = args[1].split(",");
+    for(String name: formulaNames)
+      if(!new File(name).exists()){
+        System.err.println("[ERROR] Formula file \""+ name +"\" does not exist.");
+        System.exit(1);
+      }
+    File formulaFile = new File(formulaNames[0]);
     
     Conf.NUM_THREADS = Integer.parseInt(args[2]);
     Conf.NUM_TRACES  = Integer.parseInt(args[3]);
@@ -423,6 +539,12 @@ public class LearnMDP {
       printHelp();
       return;
     }
+    if(formulaNames.length > 1 && Conf.LOAD_POLICY == null) {
+      System.err.println("[ERROR] Several formulas can only be verified against a stored policy, see -loadPolicy.");
+      System.exit(1);
+    }
+    if(Conf.PARALLEL_UPDATE_FLAG)   // Whichever update was chosen
+      Conf.POLICY_UPDATE = new ParallelPU(Conf.POLICY_UPDATE, Conf.NUM_THREADS);
     
     // Ignore Prism output
     PrismLog ll = new PrismPrintStreamLog(new PrintStream(new OutputStream(){ public void write(int b) {} }));
@@ -433,6 +555,11 @@ public class LearnMDP {
 
     ModulesFile modulesFile = p.parseModelFile(modulesF);                      // PRISM reads modules file
     
+    if(Conf.LOAD_POLICY != null) {
+      verifyStoredPolicy(p, modulesFile, modulesF, formulaNames);
+      return;
+    }
+    
     Formula formula = Parser$.MODULE$.parseFormula(readFile(formulaFile)); // Read and parse formula
     if(formula == null){
       System.err.println("Could not parse formula.");
@@ -446,6 +573,24 @@ public class LearnMDP {
     
     Profiling pr = new Profiling();
     
+    // Explicit model
+    if(Conf.EXPLICIT_FLAG) {
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Exploring model... ");
+      tmpTime = System.currentTimeMillis();
+      lmdp.loadExplicitModel(modulesF);
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println(m2s(System.currentTimeMillis() - tmpTime) + "s");
+      if(lmdp.getExplicitModel() != null && Conf.DEBUG_FLAG) System.out.println(" - Model has " + lmdp.getExplicitModel().getNumStates() + " states");
+    }
+    
+    // Resume learning from its checkpoint, before threads take their seeds
+    if(Conf.RESUME_FLAG && Conf.LEARN_CHECKPOINT != null) {
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Resuming from checkpoint... ");
+      tmpTime = System.currentTimeMillis();
+      boolean found = lmdp.resume(new File(Conf.LEARN_CHECKPOINT));
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println(found ? m2s(System.currentTimeMillis() - tmpTime) + "s" : "none found");
+      if(found && Conf.DEBUG_FLAG) System.out.println(" - Continuing at block " + lmdp.firstBlock);
+    }
+    
     // Starting Threads
     if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Starting threads... ");
     tmpTime = System.currentTimeMillis();
@@ -471,6 +616,13 @@ public class LearnMDP {
       if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println(m2s(pr.tDeterminise) + "s");
     }
     
+    if(Conf.SAVE_POLICY != null) {
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Saving policy... ");
+      tmpTime = System.currentTimeMillis();
+      PolicyFile.write(lmdp.getPolicy(), new File(Conf.SAVE_POLICY), lmdp.getCodec());
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println(m2s(System.currentTimeMillis() - tmpTime) + "s");
+    }
+    
     // Statistical Model Checking
     if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Starting SMC... ");
     tmpTime = System.currentTimeMillis();
@@ -503,8 +655,53 @@ public class LearnMDP {
     }
   }
 
+  /**
+   * Checks a policy written by -savePolicy against each formula in turn,
+   * instead of learning one.
+   */
+  protected static void verifyStoredPolicy(Prism p, ModulesFile modulesFile, File modulesF, String[] formulaNames) throws Exception {
+    if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Loading policy... ");
+    long tmpTime = System.currentTimeMillis();
+    PolicyFile.Stored stored = PolicyFile.load(new File(Conf.LOAD_POLICY), new StateCodec(modulesFile.createVarList()));
+    Policy policy = (Conf.DETERMINISE_FLAG && !stored.isDeterministic()) ? stored.determinise() : stored;
+    if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println(m2s(System.currentTimeMillis() - tmpTime) + "s");
+    if(Conf.DEBUG_FLAG) System.out.println(" - Policy has " + policy.numStates() + " states");
+    
+    for(String name: formulaNames) {
+      Formula formula = Parser$.MODULE$.parseFormula(readFile(new File(name)));
+      if(formula == null){
+        System.err.println("Could not parse formula " + name + ".");
+        System.exit(1);
+      }
+      
+      long startTime = System.currentTimeMillis();
+      LearnMDP lmdp = new LearnMDP(p, modulesFile, formula);
+      lmdp.setPolicy(policy);
+      if(Conf.EXPLICIT_FLAG)
+        lmdp.loadExplicitModel(modulesF);
+      lmdp.startThreads(Conf.NUM_THREADS, false);
+      lmdp.setThreadMode(false);
+      
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.print("Starting SMC of " + name + "... ");
+      Result r;
+      if(Conf.INT_EST_FLAG) r = lmdp.IntervalEstimation(Conf.ALPHA, Conf.BETA, Conf.DELTA, Conf.COEFFICIENT_EST);
+      else                  r = lmdp.HypothesisTesting(Conf.THETA, Conf.T, Conf.ALPHA, Conf.BETA);
+      if(Conf.PROGRESS_FLAG || Conf.DEBUG_FLAG) System.out.println(m2s(System.currentTimeMillis() - startTime) + "s");
+      lmdp.stopThreads();
+      
+      if(Conf.MACHINE_FLAG)
+        System.out.println(r.CSV());
+      else {
+        if(formulaNames.length > 1) System.out.println(name + ":");
+        System.out.println(r);
+        System.out.println(" - Total run time: " + m2s(System.currentTimeMillis() - startTime) + "s");
+      }
+    }
+  }
+
   public static void printHelp() {
     System.out.println("Usage: sh run.sh modules_file formula_file num_threads number_traces_per_block number_of_blocks [OPTIONS]");
+    System.out.println("       sh run.sh modules_file formula_file[,formula_file...] num_threads number_traces_per_block number_of_blocks -loadPolicy=file [OPTIONS]");
     System.out.println();
     System.out.println("OPTIONS are any of the following:");
     System.out.println(" ---- OUTPUT");
@@ -514,9 +711,25 @@ public class LearnMDP {
     System.out.println(" -PROGRESS               output algorithm progress information");
     System.out.println();
     
+    System.out.println(" ---- SIMULATION");
+    System.out.println(" -monitor                check formulae during simulation and stop traces once decided");
+    System.out.println(" -onTheFly               keep only the variables used by the formula instead of full paths");
+    System.out.println(" -explicit               explore the model once and simulate it without PRISM");
+    System.out.println(" -explicit=file          same, but cache the explored model in file to skip exploration next time");
+    System.out.println(" -transitionCache=val    cache the transitions of up to val states per thread (default: 0, i.e. off)");
+    System.out.println();
+    
     System.out.println(" ---- LEARNING");
     System.out.println(" -BayesLearning          use Bayes factor heuristic to stop learning");
     System.out.println(" -NoDeterminisation      do not determinise policy prior to SMC");
+    System.out.println(" -flatPolicy             keep the policy of all states in one array instead of an object per state");
+    System.out.println(" -mappedPolicy           keep the policy off the heap, in files mapped from the temporary directory");
+    System.out.println(" -mappedPolicy=dir       same, with the files in dir");
+    System.out.println(" -boundedPolicy=val      keep the policy of at most val states, evicting uniform and rarely visited ones;");
+    System.out.println("                         rewards still take memory in proportion to the states rewarded per block");
+    System.out.println(" -localRewards           gather rewards in each thread and add them up after each batch of jobs");
+    System.out.println(" -parallelUpdate         update the policy of different states on all threads");
+    System.out.println(" -pipeline               update the policy while simulating the next block, which then uses the previous policy");
     System.out.println(" -checkpoint             use last action identification for checkpoint formulae");
     System.out.println(" -H=val                  set policy update history weight (default: 0.5)");
     System.out.println(" -iota=val               set an increment of the learning theta (default: 0.05)");
@@ -532,6 +745,10 @@ public class LearnMDP {
     System.out.println("                               LastAction(1, 10000, 1, 10000) should work well for staying within safe area");
     System.out.println(" -epsilon=val            set epsilon-learning parameter [epsilon] (default: 0.1)");
     System.out.println(" -update=val             set policy update method to one of count|compcount|epsilon|success|epcount (default: count)");
+    System.out.println(" -learnCheckpoint=file   checkpoint learning into file (and file.log) after every block");
+    System.out.println(" -resume                 resume learning from the checkpoint given by -learnCheckpoint, if any");
+    System.out.println(" -savePolicy=file        write the learned policy to file, after determinisation if any");
+    System.out.println(" -loadPolicy=file        verify the policy in file against each formula instead of learning one");
     System.out.println();
     
     System.out.println(" ---- STATISTICAL MODEL CHECKING {HT: hypothesis testing, IE: interval estimation}");
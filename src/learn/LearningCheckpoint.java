@@ -0,0 +1,337 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+import smcmdp.*;
+import smcmdp.policy.*;
+import smcmdp.reward.*;
+
+/**
+ * Checkpoints of a learning run, from which it can be resumed after a crash
+ * or preemption.
+ * 
+ * A checkpoint is a policy file, see PolicyFile, and a log next to it, to
+ * which every block appends the distributions of the states it rewarded.
+ * Policy updates only change states with rewards, and the other states are
+ * uniform as if they were new, so the file and the log together make up the
+ * policy. States that a BoundedPolicy evicts are logged without a
+ * distribution, and dropped again on resume. Once the log grows larger than
+ * the file, the policy is written anew into the file and the log starts over.
+ * 
+ * Only the rewarded states are collected at the end of a block, while workers
+ * wait. Their distributions are encoded and written by a thread of its own
+ * while the next block runs, and since workers only add uniform states to the
+ * policy meanwhile, it is read as it is instead of being copied. Whoever
+ * updates, overwrites or releases a recorded policy waits for awaitPolicy()
+ * first. Each record of the log has a checksum, so that a record cut short by
+ * a crash is dropped.
+ */
+public class LearningCheckpoint {
+  public static final int RECORD_MAGIC = 0x534d4342; // "SMCB"
+  public static final long MIN_LOG_SIZE = 1 << 20;   // Smaller logs are never compacted
+  
+  protected File base, log;
+  protected StateCodec codec;             // That packed the states, see PolicyFile
+  protected ExecutorService writer;
+  protected DataOutputStream out;         // Appends to the log, used by the writer only
+  protected volatile long baseSize, logSize;
+  protected volatile boolean compacting;
+  protected volatile Future<?> reading;           // The last task that reads a recorded policy
+  
+  /**
+   * @param base The policy file, next to which the log is kept
+   * @param resumed Whether the run resumed from this checkpoint, which is
+   * otherwise discarded
+   * @param codec The codec that packs the states of the model
+   */
+  public LearningCheckpoint(File base, boolean resumed, StateCodec codec) throws IOException {
+    this.base = base;
+    this.codec = codec;
+    this.log = new File(base.getPath() + ".log");
+    if(!resumed) {
+      base.delete();
+      log.delete();
+    }
+    baseSize = base.length();
+    logSize = log.length();
+    out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, true)));
+    writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "checkpoint");
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+  
+  /**
+   * Records the policy after a block, given the rewards it was updated with,
+   * which must not be reset yet. The policy is read later, see awaitPolicy().
+   * @param blocks The number of blocks learned so far
+   * @param seed The seed of the generator of RNG seeds from now on
+   */
+  public void record(final int blocks, final Policy policy, Rewards rewards, final long seed) {
+    if(!compacting && logSize > Math.max(baseSize, MIN_LOG_SIZE)) {
+      compacting = true;
+      final Policy[] copy = new Policy[1];
+      reading = writer.submit(new Runnable() {
+        public void run() { copy[0] = policy.copy(); } // Written from the copy, so that the policy is only read briefly
+      });
+      writer.submit(new Runnable() {
+        public void run() {
+          writeBase(copy[0], blocks, seed);
+          copy[0].release();
+        }
+      });
+      return;
+    }
+    
+    final List<PackedState> states = new ArrayList<PackedState>(rewards.numStates());
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++)
+      if(rewards.getState(id) != null)
+        states.add(rewards.getState(id));
+    final List<PackedState> evicted = new ArrayList<PackedState>();
+    if(policy instanceof BoundedPolicy)
+      evicted.addAll(((BoundedPolicy) policy).getEvicted());
+    
+    reading = writer.submit(new Runnable() {
+      public void run() {
+        List<PackedState> resident = new ArrayList<PackedState>(states.size());
+        for(PackedState state: states)
+          if(policy.getStatePolicy(state) != null) // Unless evicted by the update
+            resident.add(state);
+        try {
+          append(encode(blocks, seed, policy, resident, evicted));
+        } catch(IOException e) {
+          throw new RuntimeException(e); // Not with a ByteArrayOutputStream
+        }
+      }
+    });
+  }
+  
+  /**
+   * Waits until the policies given to record() so far have been read, which
+   * must happen before they are updated, overwritten or released.
+   */
+  public void awaitPolicy() throws InterruptedException, ExecutionException {
+    if(reading != null)
+      reading.get();
+  }
+  
+  protected static byte[] encode(int blocks, long seed, Policy policy, List<PackedState> states, List<PackedState> evicted) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream d = new DataOutputStream(bytes);
+    d.writeInt(RECORD_MAGIC);
+    d.writeInt(blocks);
+    d.writeLong(seed);
+    d.writeInt(states.size() + evicted.size());
+    for(PackedState s: states) {
+      writeState(d, s);
+      double[] p = policy.getStatePolicy(s).getPolicy();
+      d.writeInt(p.length);
+      for(double x: p)
+        d.writeDouble(x);
+    }
+    for(PackedState s: evicted) {
+      writeState(d, s);
+      d.writeInt(0);           // No distribution
+    }
+    d.flush();
+    return bytes.toByteArray();
+  }
+  
+  protected static void writeState(DataOutputStream d, PackedState s) throws IOException {
+    d.writeInt(s.numWords());
+    for(int i = 0; i < s.numWords(); i++)
+      d.writeLong(s.getWord(i));
+  }
+  
+  protected void append(byte[] record) {
+    try {
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      out.writeInt(record.length);
+      out.write(record);
+      out.writeInt((int) crc.getValue());
+      out.flush();
+      logSize += 8 + record.length;
+    } catch(IOException e) {
+      System.err.println("*** WARNING *** Could not write checkpoint to " + log + ": " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Writes the whole policy into the file, replacing the old one only once it
+   * is complete, and starts the log over. Until the log is emptied, its records
+   * are older than the file, which says so.
+   */
+  protected void writeBase(Policy policy, int blocks, long seed) {
+    try {
+      File tmp = new File(base.getPath() + ".tmp");
+      PolicyFile.write(policy, tmp, blocks, codec);
+      if(!tmp.renameTo(base) && !(base.delete() && tmp.renameTo(base)))
+        throw new IOException("Could not rename " + tmp);
+      baseSize = base.length();
+      
+      out.close();
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(log, false)));
+      logSize = 0;
+      append(encode(blocks, seed, policy, new ArrayList<PackedState>(), new ArrayList<PackedState>())); // Only the seed
+    } catch(IOException e) {
+      System.err.println("*** WARNING *** Could not write checkpoint to " + base + ": " + e.getMessage());
+    }
+    compacting = false;
+  }
+  
+  /**
+   * Waits for pending writes, and closes the log.
+   */
+  public void close() throws InterruptedException {
+    writer.shutdown();
+    writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    try {
+      out.close();
+    } catch(IOException e) {
+      System.err.println("*** WARNING *** Could not write checkpoint to " + log + ": " + e.getMessage());
+    }
+  }
+  
+  /**
+   * Where a resumed run continues.
+   */
+  public static class Resumed {
+    public int blocks;      // The number of blocks learned so far
+    public Long seed;       // The seed of the generator of RNG seeds, if known
+  }
+  
+  /**
+   * Reads a checkpoint into an empty policy, and cuts off any record of the
+   * log that was not written entirely. A BoundedPolicy is then brought back
+   * within its capacity.
+   * @return Where to continue, or null if there is no checkpoint
+   */
+  public static Resumed resume(File base, Policy policy, StateCodec codec) throws IOException {
+    File log = new File(base.getPath() + ".log");
+    if(!base.exists() && !log.exists())
+      return null;
+    
+    Resumed r = new Resumed();
+    if(base.exists()) {
+      PolicyFile.Stored stored = PolicyFile.load(base, codec);
+      for(PackedState s: stored.states())
+        put(policy, s, stored.getStatePolicy(s).getPolicy());
+      r.blocks = Math.max(stored.getBlocks(), 0);
+    }
+    
+    if(log.exists()) {
+      long valid = 0, length = log.length();
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(log)));
+      try {
+        while(true) {
+          byte[] record = readRecord(in, length - valid);
+          if(record == null)
+            break;
+          valid += 8 + record.length;
+          
+          DataInputStream d = new DataInputStream(new ByteArrayInputStream(record));
+          if(d.readInt() != RECORD_MAGIC)
+            break;
+          int blocks = d.readInt();
+          r.seed = d.readLong();
+          if(blocks <= r.blocks && base.exists()) // Already in the file
+            continue;
+          r.blocks = blocks;
+          for(int n = d.readInt(); n > 0; n--) {
+            long[] words = new long[d.readInt()];
+            for(int i = 0; i < words.length; i++)
+              words[i] = d.readLong();
+            double[] p = new double[d.readInt()];
+            for(int i = 0; i < p.length; i++)
+              p[i] = d.readDouble();
+            put(policy, new PackedState(words[0], (words.length == 1) ? null : Arrays.copyOfRange(words, 1, words.length)), p);
+          }
+        }
+      } finally {
+        in.close();
+      }
+      
+      RandomAccessFile f = new RandomAccessFile(log, "rw");
+      try {
+        f.setLength(valid);
+      } finally {
+        f.close();
+      }
+    }
+    if(policy instanceof BoundedPolicy)
+      ((BoundedPolicy) policy).settle();
+    return r;
+  }
+  
+  /**
+   * @return The next record, or null if there is none that is complete and intact
+   */
+  protected static byte[] readRecord(DataInputStream in, long remaining) throws IOException {
+    try {
+      int length = in.readInt();
+      if(length < 0 || length > remaining - 8) // Cut short
+        return null;
+      byte[] record = new byte[length];
+      in.readFully(record);
+      CRC32 crc = new CRC32();
+      crc.update(record);
+      return (in.readInt() == (int) crc.getValue()) ? record : null;
+    } catch(EOFException e) {
+      return null;
+    }
+  }
+  
+  protected static void put(Policy policy, PackedState state, double[] p) {
+    if(p.length == 0) { // Evicted
+      if(policy instanceof BoundedPolicy)
+        ((BoundedPolicy) policy).forget(state);
+      else if(policy.defined(state)) { // Resumed without a bound, evicted states are uniform
+        double[] uniform = new double[policy.getStatePolicy(state).size()];
+        Arrays.fill(uniform, 1.0/uniform.length);
+        policy.getStatePolicy(state).setState(uniform);
+      }
+      return;
+    }
+    if(!policy.defined(state))
+      policy.initialise(state, p.length);
+    policy.getStatePolicy(state).setState(p);
+  }
+}
@@ -36,6 +36,7 @@ import java.util.concurrent.*;
 
 import smcmdp.*;
 import smcmdp.policy.*;
+import smcmdp.reward.*;
 import parser.*;
 import prism.*;
 import simulator.*;
@@ -44,9 +45,26 @@ import parser.State;
 public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
   private LearnMDP server;
   
-  protected List<Step> steps;
+  protected StateCodec codec;
+  protected TransitionCache cache;       // Transitions out of recently visited states, if enabled
+  protected boolean transitionsStale;    // Whether transitionList is not up to date with the current state
+  protected double[] noRewards;          // Rewards of cached transitions, which are not computed
+  protected TraceRecorder steps; // Reused for every trace, cleared in initialisePath
+  protected Rewards localRewards;  // Rewards of this thread not yet added to the server's, if gathered locally
   
-  protected BlockingQueue<SatResult> results;
+  protected BatchedResults results; // Verdicts of traces, in SMC mode
+  protected BatchedResults batch;   // The results the current batch of jobs is for, in SMC mode
+  protected long ticket;            // The ticket of the current batch of jobs, in SMC mode
+  protected boolean verifying;      // Whether traces are only checked, so that nothing is recorded
+  
+  protected CompiledFormula formula; // The formula compiled against the model's variables, if possible
+  protected TraceData pathData;      // Gives the compiled formula access to the path
+  protected RecordedData recorded;   // The states of the path as far as the formula needs them, on-the-fly paths only
+  protected Monitor monitor;         // Decides formulae while traces are generated, if enabled
+  
+  protected ExplicitModel explicit;      // Simulated instead of PRISM's engine, if enabled
+  protected ExplicitTrace explicitTrace; // The states of the trace through the explicit model
+  protected int explicitState;           // Current state of the trace through the explicit model
   
   protected long timeSimulating; // Time spent generating traces
   protected long timeChecking;   // Time spent checking traces against formula
@@ -56,11 +74,12 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
     this(server, null);
   }
   
-  public TraceGeneratorThread(LearnMDP server, BlockingQueue<SatResult> results) {
+  public TraceGeneratorThread(LearnMDP server, BatchedResults results) {
     super(server.getPrism());
     this.server = server;
     this.results = results;
-    this.steps = new LinkedList<Step>();
+    this.steps = new TraceRecorder();
+    this.localRewards = (Conf.LOCAL_REWARDS_FLAG) ? new Rewards() : null;
     this.rng = new SynchronizedRNG(server);
     timeSimulating = 0;
     timeChecking = 0;
@@ -74,56 +93,138 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
       State initialState = server.getModulesFile().getDefaultInitialState();
       
       this.createNewPath(server.getModulesFile());       // Initialising path in the engine
+      codec = new StateCodec(this.getVarList());         // Policy and rewards are keyed by packed states
+      if(Conf.TRANSITION_CACHE_SIZE > 0) {
+        cache = new TransitionCache(Conf.TRANSITION_CACHE_SIZE);
+        noRewards = new double[server.getModulesFile().getNumRewardStructs()];
+      }
+      
+      if(server.isFormulaCompiled()) // Reported once by the server otherwise
+        formula = CompiledFormula$.MODULE$.compile(server.getFormula(), this.getVarList(), false);
+      if(server.getExplicitModel() != null && formula != null) {
+        explicit = server.getExplicitModel();
+        explicitTrace = new ExplicitTrace(formula, explicit);
+        pathData = explicitTrace;
+      } else if(Conf.ON_THE_FLY_FLAG && formula != null) {
+        this.createNewOnTheFlyPath(server.getModulesFile()); // Only keeps the current and previous state
+        recorded = new RecordedData(formula);
+        pathData = recorded;
+      } else if(formula != null) {
+        pathData = new PathData(formula, this.getPathFull());
+      } else if((Conf.ON_THE_FLY_FLAG || server.getExplicitModel() != null) && Conf.DEBUG_FLAG)
+        System.out.println("Formula cannot be compiled, simulating full paths with PRISM...");
+      if(Conf.MONITOR_FLAG && formula != null && Monitor$.MODULE$.supports(formula))
+        monitor = new Monitor(formula);
       
       while(true){
         int nJobs = server.requestJobs(Conf.NUM_JOBS_PER_REQUEST);
         if (nJobs == -1) return; // My work here is done *tips hat and walks away*
         
-        for(int j = 0; j < nJobs - 1; j++){
-          SatResult sat = runJob(traceSize, initialState);
-          reward(sat);
+        batch = results;
+        verifying = (batch != null); // SMC needs neither steps nor new states in the policy
+        if(verifying) {
+          verify(nJobs, traceSize, initialState);
+        } else {
+          for(int j = 0; j < nJobs; j++){
+            SatResult sat = runJob(traceSize, initialState);
+            reward(sat);
+          }
+          mergeRewards();
         }
-        
-        // For the last iteration, we have to atomically add the final result and
-        // decrease the number of working threads (deadlock otherwise)
-        SatResult sat = runJob(traceSize, initialState);
-        server.lock();
-        reward(sat);
-        server.numWorkersWorking--;
-        server.unlock();
+        server.finishJobs(nJobs); // The mini-block is over once all its jobs are rewarded
       }
     } catch(Exception e) { e.printStackTrace(); }
   }
   
   protected void reward(SatResult sat) throws Exception {
     long timer = System.currentTimeMillis();
-    if(results == null) rewardPath(sat);  // Compute rewards for this path
-    else                results.put(sat); // Or simply "output" the result
+    rewardPath(sat);  // Compute rewards for this path
     if(sat.getSat()) server.sat.incrementAndGet();
     else             server.fal.incrementAndGet();
     timeRewarding += System.currentTimeMillis() - timer;
   }
+  
+  /**
+   * Generates the traces of a batch of jobs in SMC mode, and only hands on how
+   * many of them satisfy the formula. The batch takes its ticket before any of
+   * its traces is generated, see BatchedResults. It is dropped if the results
+   * are cancelled in the meantime.
+   */
+  protected void verify(int nJobs, int traceSize, State initialState) throws Exception {
+    ticket = batch.ticket();
+    int nSat = 0;
+    for(int j = 0; j < nJobs; j++) {
+      SatResult sat = runJob(traceSize, initialState);
+      if(sat == null)
+        return;
+      if(sat.getSat()) nSat++;
+    }
+    
+    long timer = System.currentTimeMillis();
+    batch.put(ticket, nJobs, nSat);
+    timeRewarding += System.currentTimeMillis() - timer;
+  }
+  
+  /**
+   * @return Whether the master decided while the current batch is generated
+   */
+  protected boolean cancelled() {
+    return batch != null && batch.isCancelled(ticket);
+  }
 
+  /**
+   * Generates a trace and checks it against the formula.
+   * @return The verdict, or null if the results were cancelled meanwhile.
+   */
   protected SatResult runJob(int traceSize, State initialState) throws Exception {
     // Generating trace
     long timer = System.currentTimeMillis();
-    PathFull path = this.getPathFull();
     
-    this.initialisePath(new State(initialState));
+    this.initialisePath(initialState); // The engine copies the state into the path itself
     
-    this.automaticTransitions(traceSize, false);   // Run each individual trace for however many the formula requires
-    timeSimulating += System.currentTimeMillis() - timer;
+    if(monitor != null) {
+      SatResult result = monitorTransitions(traceSize);
+      timeSimulating += System.currentTimeMillis() - timer;
+      if(result != null)
+        return result;
+    } else {
+      for(int i = 0; i < traceSize && !cancelled() && this.automaticTransition(); i++); // Run each individual trace for however many the formula requires
+      timeSimulating += System.currentTimeMillis() - timer;
+    }
+    if(cancelled())
+      return null;
     
     // Checking formula
     timer = System.currentTimeMillis();
-    Trace tr = new Trace(path, this.getVarList()); // Get a trace we can actually satisfy
-
-    SatResult result = Satisfaction$.MODULE$.interpret(tr, server.getFormula()); // Check whether it is satisfied
+    SatResult result;
+    if(formula != null) {
+      result = formula.check(pathData);
+    } else {
+      Trace tr = new Trace(this.getPathFull(), this.getVarList()); // Get a trace we can actually satisfy
+      result = Satisfaction$.MODULE$.interpret(tr, server.getFormula()); // Check whether it is satisfied
+    }
     timeChecking += System.currentTimeMillis() - timer;
     return result;
   }
   
-  public void setResultQueue(BlockingQueue<SatResult> results){
+  /**
+   * Runs up to traceSize transitions like automaticTransitions, but asks the monitor
+   * after each one whether the formula is already decided, and stops if so.
+   * Monitoring time is counted as simulation time, since both are interleaved.
+   * @return The verdict, or null if the trace ran to the end undecided, or was cancelled.
+   */
+  protected SatResult monitorTransitions(int traceSize) throws PrismException {
+    monitor.reset(pathData);
+    SatResult result = monitor.check(0);
+    for(int i = 0; result == null && i < traceSize; i++) {
+      if(cancelled() || !this.automaticTransition())
+        return null;
+      result = monitor.check(i + 1); // Every state but the newest one has a successor
+    }
+    return result;
+  }
+  
+  public void setResults(BatchedResults results){
     this.results = results;
   }
   
@@ -132,12 +233,39 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
   }
   
   public void rewardPath(SatResult sat) {
-    server.getRewards().updateRewards(steps, sat);
+    if(localRewards != null) localRewards.updateRewards(steps, sat);
+    else                     server.getRewards().updateRewards(steps, sat);
+  }
+  
+  /**
+   * Adds the rewards gathered locally to the server's, once per batch of jobs,
+   * so that threads only meet on the shared counters once per state and batch.
+   */
+  protected void mergeRewards() {
+    if(localRewards == null || localRewards.numStates() == 0)
+      return;
+    long timer = System.currentTimeMillis();
+    server.getRewards().add(localRewards);
+    localRewards.reset();
+    timeRewarding += System.currentTimeMillis() - timer;
   }
 
   public void initialisePath(State initialState) throws PrismException {
+    if(explicit != null) {            // Traces through the explicit model always start in its initial state
+      explicitState = explicit.getInitialState();
+      steps.clear();
+      explicitTrace.clear();
+      explicitTrace.record(explicitState);
+      return;
+    }
+    
     super.initialisePath(initialState);
-    steps = new LinkedList<Step>();
+    transitionsStale = false;
+    steps.clear();
+    if(recorded != null) {
+      recorded.clear();
+      recorded.record(this.currentState);
+    }
   }
   
   /**
@@ -151,6 +279,11 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
   }
   
   public boolean automaticTransition(Policy p) throws PrismException {
+    if(explicit != null)
+      return explicitTransition(p);
+    if(cache != null)
+      return cachedTransition(p);
+    
     Choice choice;
     int numChoices, i, j;
     double d;
@@ -161,9 +294,8 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
       return false;
     //throw new PrismException("Deadlock found at state " + path.getCurrentState().toString(modulesFile));
     
-    // Initialise policy incrementally and uniformly (if this state was not visited before)
-    if(numChoices > 1 && !p.defined(this.currentState))
-      p.initialise(new State(this.currentState), numChoices);
+    // States with a single choice need no policy, and are never rewarded
+    PackedState state = (numChoices > 1) ? codec.encode(this.currentState) : null;
     
     switch (modelType) {
     case DTMC:
@@ -173,15 +305,15 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
         i = 0;
       else {
         d = rng.randomUnifDouble();
-        if(!p.defined(this.currentState))
-          System.out.println("LOL"+numChoices);
-        i = p.getIndexByProbabilitySum(this.currentState, d);
+        i = (verifying) ? p.sample(state, numChoices, d)
+                        : p.choose(state, numChoices, d); // Initialises the policy of states not visited before
       }
       choice = transitionList.getChoice(i);
       // Pick a random transition from this choice
       d = rng.randomUnifDouble();
       j = choice.getIndexByProbabilitySum(d);
       // Execute
+      if(!verifying) steps.add(state, i, j, numChoices);
       executeTransition(i, j, -1);
       break;
     case CTMC:
@@ -192,12 +324,80 @@ public class TraceGeneratorThread extends SimulatorEngine implements Runnable {
     return true;
   }
   
+  /**
+   * Same as automaticTransition, but takes the transitions out of the current state from
+   * the cache, so that PRISM only computes them for states that are not cached. The
+   * transition is then executed without PRISM, and no rewards are computed for it.
+   */
+  protected boolean cachedTransition(Policy p) throws PrismException {
+    PackedState state = codec.encode(this.currentState);
+    TransitionCache.Entry transitions = cache.get(state);
+    if(transitions == null) {
+      if(transitionsStale)
+        updater.calculateTransitions(this.currentState, transitionList);
+      transitionsStale = false;
+      transitions = cache.put(state, this.currentState, transitionList);
+    }
+    
+    int numChoices = transitions.getNumChoices();
+    if(numChoices == 0)
+      return false;
+    if(modelType == ModelType.CTMC) {
+      System.err.println("*** ERROR *** Cannot simulate CTMCs. Sorry!");
+      return false;
+    }
+    
+    // Pick a choice according to policy, and a transition of it, as automaticTransition does
+    int i = 0;
+    if(numChoices > 1)
+      i = (verifying) ? p.sample(state, numChoices, rng.randomUnifDouble())
+                      : p.choose(state, numChoices, rng.randomUnifDouble());
+    else
+      state = null;
+    int j = transitions.getIndexByProbabilitySum(i, rng.randomUnifDouble());
+    if(!verifying) steps.add(state, i, j, numChoices);
+    
+    // Execute
+    previousState.copy(this.currentState);
+    this.currentState.copy(transitions.getTarget(i, j));
+    path.addStep(transitions.getTransitionIndex(i, j), transitions.getModuleOrActionIndex(i), noRewards, this.currentState, noRewards);
+    transitionsStale = true;
+    if(recorded != null)
+      recorded.record(this.currentState);
+    return true;
+  }
+  
+  /**
+   * Same as automaticTransition, but on the explicit model, without PRISM.
+   */
+  protected boolean explicitTransition(Policy p) {
+    int numChoices = explicit.getNumChoices(explicitState);
+    if(numChoices == 0)
+      return false;
+    
+    int i = 0;
+    PackedState state = null;
+    if(numChoices > 1) {
+      state = explicit.getKey(explicitState);
+      i = (verifying) ? p.sample(state, numChoices, rng.randomUnifDouble())
+                      : p.choose(state, numChoices, rng.randomUnifDouble());
+    }
+    int j = explicit.getIndexByProbabilitySum(explicitState, i, rng.randomUnifDouble());
+    if(!verifying) steps.add(state, i, j, numChoices);
+    
+    explicitState = explicit.getTarget(explicitState, i, j);
+    explicitTrace.record(explicitState);
+    return true;
+  }
+  
   protected void executeTransition(int i, int offset, int index) throws PrismException {
-    steps.add(new Step(path.getCurrentState(), i, offset, transitionList.getNumChoices())); // path.getCurrentState() should not change with transition
     super.executeTransition(i, offset, index);
+    if(recorded != null)
+      recorded.record(this.currentState);
   }
   
   public VarList getVarList() { return varList; }
+  public TransitionCache getTransitionCache() { return cache; }
 
   public long getTimeSimulating() { return timeSimulating; }
   public long getTimeChecking()   { return timeChecking;   }
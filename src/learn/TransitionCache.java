@@ -0,0 +1,169 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package learn;
+
+import java.util.*;
+
+import smcmdp.*;
+import parser.State;
+import prism.*;
+import simulator.*;
+
+/**
+ * A bounded cache of the transitions out of visited states, so that the guards
+ * and updates of the model are only evaluated the first time a state is seen.
+ * When full, entries are evicted with the clock algorithm: states that were hit
+ * since the hand last passed them get a second chance.
+ * 
+ * Not thread-safe, every TraceGeneratorThread has its own.
+ */
+public class TransitionCache {
+  
+  /**
+   * The choices out of a state, with the cumulative probabilities and the
+   * target states of their transitions.
+   */
+  public static class Entry {
+    protected PackedState state;
+    protected int[] start;          // Transitions of choice i are start[i] to start[i+1]-1
+    protected int[] moduleOrAction; // Module or action of each choice
+    protected double[] cumulative;  // Probabilities within each choice summed up to each transition
+    protected State[] targets;      // Target state of each transition
+    protected boolean referenced;   // Whether the entry was used since the clock hand passed it
+    
+    protected Entry(PackedState state, State current, TransitionList transitions) throws PrismException {
+      int numChoices = transitions.getNumChoices();
+      int numTransitions = 0;
+      for(int i = 0; i < numChoices; i++)
+        numTransitions += transitions.getChoice(i).size();
+      
+      this.state = state;
+      this.start = new int[numChoices + 1];
+      this.moduleOrAction = new int[numChoices];
+      this.cumulative = new double[numTransitions];
+      this.targets = new State[numTransitions];
+      int t = 0;
+      for(int i = 0; i < numChoices; i++) {
+        Choice choice = transitions.getChoice(i);
+        start[i] = t;
+        moduleOrAction[i] = choice.getModuleOrActionIndex();
+        double d = 0.0;
+        for(int j = 0; j < choice.size(); j++, t++) {
+          d += choice.getProbability(j);  // Summed in the same order as Choice.getIndexByProbabilitySum
+          cumulative[t] = d;
+          targets[t] = choice.computeTarget(j, current);
+        }
+      }
+      start[numChoices] = t;
+    }
+    
+    public int getNumChoices() { return moduleOrAction.length; }
+    
+    public int getModuleOrActionIndex(int choice) { return moduleOrAction[choice]; }
+    
+    /** Index of the transition among those of all choices, as PRISM's transition lists number them. */
+    public int getTransitionIndex(int choice, int offset) { return start[choice] + offset; }
+    
+    public State getTarget(int choice, int offset) { return targets[start[choice] + offset]; }
+    
+    /**
+     * Picks a transition of the choice like Choice.getIndexByProbabilitySum,
+     * i.e. the first one whose cumulative probability exceeds x, or the last
+     * one, but by binary search.
+     */
+    public int getIndexByProbabilitySum(int choice, double x) {
+      int lo = start[choice], hi = start[choice + 1] - 1;
+      while(lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if(x >= cumulative[mid]) lo = mid + 1;
+        else                     hi = mid;
+      }
+      return lo - start[choice];
+    }
+  }
+  
+  protected int capacity;
+  protected Map<PackedState, Entry> entries;
+  protected Entry[] clock;
+  protected int hand;
+  
+  protected long hits;
+  protected long misses;
+  protected long evictions;
+  
+  public TransitionCache(int capacity) {
+    this.capacity = capacity;
+    this.entries = new HashMap<PackedState, Entry>(2 * capacity);
+    this.clock = new Entry[capacity];
+    this.hand = 0;
+  }
+  
+  /**
+   * @return The cached transitions out of the state, or null if they are not cached.
+   */
+  public Entry get(PackedState state) {
+    Entry e = entries.get(state);
+    if(e == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    e.referenced = true;
+    return e;
+  }
+  
+  /**
+   * Caches the transitions out of the state, evicting another state if the cache is full.
+   * @param transitions The transition list PRISM computed for the state
+   */
+  public Entry put(PackedState state, State current, TransitionList transitions) throws PrismException {
+    Entry e = new Entry(state, current, transitions);
+    if(entries.size() == capacity) {
+      while(clock[hand].referenced) {
+        clock[hand].referenced = false;
+        hand = (hand + 1) % capacity;
+      }
+      entries.remove(clock[hand].state);
+      evictions++;
+    }
+    clock[hand] = e;
+    hand = (hand + 1) % capacity;
+    entries.put(state, e);
+    return e;
+  }
+  
+  public int size() { return entries.size(); }
+  
+  public long getHits() { return hits; }
+  public long getMisses() { return misses; }
+  public long getEvictions() { return evictions; }
+}
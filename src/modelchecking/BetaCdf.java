@@ -0,0 +1,166 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package modelchecking;
+
+import umontreal.iro.lecuyer.probdist.BetaDist;
+import umontreal.iro.lecuyer.util.Num;
+
+/**
+ * The cdf at a fixed point x of Beta distributions whose parameters only grow
+ * by whole numbers, as the posteriors of Bayesian tests do with every trace.
+ * Instead of evaluating the regularized incomplete beta function I_x(a, b)
+ * from scratch each time, it is updated with the recurrences
+ * 
+ *   I_x(a+1, b) = I_x(a, b) - t(a, b) / a
+ *   I_x(a, b+1) = I_x(a, b) + t(a, b) / b
+ * 
+ * where t(a, b) = x^a (1-x)^b / B(a, b), which itself changes by a factor
+ * x (a+b) / a, respectively (1-x) (a+b) / b, with each step.
+ * 
+ * The smaller of the cdf and its complement loses relative precision as it
+ * shrinks, so both are evaluated in full again once it has shrunk by a factor
+ * SHRINK since the last evaluation, after RESYNC_STEPS steps, and whenever
+ * the parameters do not just grow by whole numbers.
+ */
+public class BetaCdf {
+  public static final int DEC_PREC = 15;        // Digits of precision of BetaDist, as its instances use
+  public static final int RESYNC_STEPS = 4096;  // Steps after which the cdf is evaluated in full again
+  public static final double SHRINK = 4;        // How far the smaller side may shrink between evaluations
+  
+  protected final double x;
+  protected double a, b;
+  protected double cdf, complement; // I_x(a, b) and 1 - I_x(a, b), kept apart for precision
+  protected double term;            // t(a, b)
+  protected double smallest;        // The smaller side at the last full evaluation, divided by SHRINK
+  protected int steps;              // Steps since the last full evaluation
+  protected int evaluations;        // Full evaluations so far
+  
+  public BetaCdf(double a, double b, double x) {
+    this.x = x;
+    evaluate(a, b);
+  }
+  
+  /**
+   * @return I_x(a, b), moving to the given parameters first
+   */
+  public double cdf(double a, double b) {
+    moveTo(a, b);
+    return cdf;
+  }
+  
+  /**
+   * Moves to the given parameters, by steps if they only grew by whole numbers.
+   */
+  public void moveTo(double a, double b) {
+    double da = a - this.a, db = b - this.b;
+    if(da < 0 || db < 0 || da != Math.rint(da) || db != Math.rint(db) || term == 0 || Double.isInfinite(term)
+        || steps + da + db > RESYNC_STEPS) {
+      evaluate(a, b);
+      return;
+    }
+    
+    // Interleave the steps, so that the way there stays close to both ends
+    long ia = (long) da, ib = (long) db;
+    long sa = ia, sb = ib;
+    while(ia > 0 || ib > 0) {
+      if(ia > 0 && ia * sb >= ib * sa) {
+        double d = term / this.a;
+        cdf -= d;
+        complement += d;
+        term *= x * (this.a + this.b) / this.a;
+        this.a++;
+        ia--;
+      } else {
+        double d = term / this.b;
+        cdf += d;
+        complement -= d;
+        term *= (1 - x) * (this.a + this.b) / this.b;
+        this.b++;
+        ib--;
+      }
+    }
+    steps += (int) (da + db);
+    this.a = a;  // Exactly, whatever rounding the sums had
+    this.b = b;
+    
+    if(Math.min(cdf, complement) < smallest)
+      evaluate(a, b);
+  }
+  
+  /**
+   * Evaluates the cdf at the given parameters from scratch.
+   */
+  protected void evaluate(double a, double b) {
+    this.a = a;
+    this.b = b;
+    steps = 0;
+    evaluations++;
+    if(x <= 0 || x >= 1) {  // Constant in a and b
+      cdf = (x <= 0) ? 0 : 1;
+      complement = 1 - cdf;
+      term = 0;
+      smallest = -1;
+      return;
+    }
+    cdf = BetaDist.cdf(a, b, DEC_PREC, x);
+    complement = BetaDist.barF(a, b, DEC_PREC, x);
+    term = Math.exp(a * Math.log(x) + b * Math.log1p(-x) - Num.lnBeta(a, b));
+    smallest = Math.min(cdf, complement) / SHRINK;
+  }
+  
+  /**
+   * @return I_x(a, b) at the current parameters
+   */
+  public double getCdf() { return cdf; }
+  
+  /**
+   * @return 1 - I_x(a, b) at the current parameters, more precise than 1 - getCdf() near 1
+   */
+  public double getComplement() { return complement; }
+  
+  public double getX() { return x; }
+  
+  /**
+   * @return How often the cdf was evaluated in full
+   */
+  public int getEvaluations() { return evaluations; }
+  
+  /**
+   * I_x(a, b) evaluated in full, without constructing a BetaDist, for cdfs
+   * at points that change with the parameters.
+   */
+  public static double cdf(double a, double b, double x) {
+    if(x <= 0) return 0;
+    if(x >= 1) return 1;
+    return BetaDist.cdf(a, b, DEC_PREC, x);
+  }
+}
@@ -0,0 +1,132 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package modelchecking;
+
+import java.util.*;
+
+import umontreal.iro.lecuyer.probdist.BetaDist;
+
+/**
+ * Checks BetaCdf against SSJ's BetaDist, and measures both, on the posteriors
+ * a sequential test sees: traces satisfy the formula with probability p, and
+ * the cdf at theta is asked for after every batch of traces.
+ * 
+ * The largest absolute difference of the cdf and of its complement is reported.
+ * BetaDist is not accurate relative to values in the tails, and with thousands
+ * of traces its own results are only accurate to about 1e-6, so differences of
+ * that size are expected. The program exits with status 1 if the difference
+ * exceeds the given tolerance.
+ * 
+ * Usage: java modelchecking.BetaCdfBenchmark [max_traces [batch [tolerance]]]
+ */
+public class BetaCdfBenchmark {
+  static final double[] THETAS = { 0.01, 0.1, 0.5, 0.9, 0.99 };
+  static final double[] OFFSETS = { -0.05, -0.005, 0, 0.005, 0.05 }; // Of p from theta
+  static final double[][] PRIORS = { { 1, 1 }, { 0.5, 0.5 }, { 2, 5 } };
+  
+  static double sink;  // Keeps the benchmarked loops from being optimised away
+  
+  /**
+   * @return The largest absolute difference to BetaDist along the sequence of posteriors
+   */
+  static double accuracy(double theta, double p, double alpha, double beta, int maxTraces, int batch, Random rng) {
+    BetaCdf inc = new BetaCdf(alpha, beta, theta);
+    double maxError = 0;
+    int nSat = 0;
+    for(int n = batch; n <= maxTraces; n += batch) {
+      for(int i = 0; i < batch; i++)
+        if(rng.nextDouble() < p) nSat++;
+      double a = nSat + alpha, b = n - nSat + beta;
+      inc.moveTo(a, b);
+      
+      double cdf = BetaDist.cdf(a, b, BetaCdf.DEC_PREC, theta);
+      double complement = BetaDist.barF(a, b, BetaCdf.DEC_PREC, theta);
+      maxError = Math.max(maxError, Math.abs(inc.getCdf() - cdf));
+      maxError = Math.max(maxError, Math.abs(inc.getComplement() - complement));
+    }
+    return maxError;
+  }
+  
+  /**
+   * @return The time in milliseconds to evaluate the stopping rule after every batch,
+   * with a new BetaDist each time as HypothesisTesting did, or with a BetaCdf
+   */
+  static long time(boolean incremental, double theta, double p, int maxTraces, int batch, Random rng) {
+    long start = System.currentTimeMillis();
+    BetaCdf inc = new BetaCdf(1, 1, theta);
+    int nSat = 0;
+    for(int n = batch; n <= maxTraces; n += batch) {
+      for(int i = 0; i < batch; i++)
+        if(rng.nextDouble() < p) nSat++;
+      if(incremental)
+        sink += inc.cdf(nSat + 1, n - nSat + 1);
+      else
+        sink += new BetaDist(nSat + 1, n - nSat + 1).cdf(theta);
+    }
+    return System.currentTimeMillis() - start;
+  }
+  
+  public static void main(String[] args) throws Exception {
+    int maxTraces    = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+    int batch        = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+    double tolerance = (args.length > 2) ? Double.parseDouble(args[2]) : 1e-5;
+    Random rng = new Random(42);
+    
+    System.out.println("theta, p, alpha, beta, max absolute difference");
+    double worst = 0;
+    for(double theta: THETAS)
+      for(double offset: OFFSETS)
+        for(double[] prior: PRIORS) {
+          double p = Math.min(Math.max(theta + offset, 0), 1);
+          double difference = accuracy(theta, p, prior[0], prior[1], maxTraces, batch, rng);
+          worst = Math.max(worst, difference);
+          System.out.println(theta + ", " + p + ", " + prior[0] + ", " + prior[1] + ", " + String.format("%.3g", difference));
+        }
+    
+    time(false, 0.5, 0.5, maxTraces / 10, batch, rng);   // Warm up
+    time(true, 0.5, 0.5, maxTraces / 10, batch, rng);
+    
+    System.out.println();
+    System.out.println("theta, p, BetaDist (ms), BetaCdf (ms), speedup");
+    for(double theta: THETAS) {
+      double p = Math.min(theta + 0.005, 1);
+      long full = time(false, theta, p, maxTraces, batch, rng);
+      long inc = time(true, theta, p, maxTraces, batch, rng);
+      System.out.println(theta + ", " + p + ", " + full + ", " + inc + ", " + String.format("%.2f", 1.0 * full / Math.max(inc, 1)));
+    }
+    
+    if(worst > tolerance) {
+      System.out.println("Difference " + worst + " exceeds tolerance " + tolerance);
+      System.exit(1);
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+package modelchecking;
+
+import umontreal.iro.lecuyer.probdist.BetaDist;
+import umontreal.iro.lecuyer.util.Num;
+
+/**
+ * Checks the cdf and complement of BetaCdf against evaluations in full, on
+ * the ways the parameters move in BetaCdf: long runs of steps past
+ * RESYNC_STEPS, runs into the tails where the smaller side shrinks by SHRINK,
+ * jumps by fractions or backwards, and the points x = 0 and 1. Each value
+ * must agree within an absolute tolerance or, for the small values of the
+ * tails, within a relative one.
+ * 
+ * For whole parameters the cdf is the upper tail of a binomial distribution,
+ * which is summed term by term. BetaDist is only used for other parameters,
+ * of moderate size, since with thousands of traces its results are off by
+ * about 1e-7, more than the steps of BetaCdf are.
+ * 
+ * The program exits with status 1 at the first value that does not agree.
+ * 
+ * Usage: java modelchecking.BetaCdfCheck
+ */
+public class BetaCdfCheck {
+  static final double ABSOLUTE = 1e-9, RELATIVE = 1e-6;
+  
+  static int checked;
+  static double[] lnFactorial = new double[0];
+  
+  /**
+   * @return I_x(a, b) and 1 - I_x(a, b) for whole a and b, as the upper and
+   * lower tail of the binomial distribution of a + b - 1 trials
+   */
+  static double[] binomial(int a, int b, double x) {
+    int n = a + b - 1;
+    if(lnFactorial.length <= n) {
+      lnFactorial = new double[2 * n + 1];
+      for(int k = 0; k < lnFactorial.length; k++)
+        lnFactorial[k] = Num.lnGamma(k + 1);
+    }
+    double lx = Math.log(x), l1x = Math.log1p(-x);
+    double cdf = 0, complement = 0;
+    for(int j = 0; j <= n; j++) {
+      double t = Math.exp(lnFactorial[n] - lnFactorial[j] - lnFactorial[n - j] + j * lx + (n - j) * l1x);
+      if(j >= a) cdf += t;
+      else       complement += t;
+    }
+    return new double[] { cdf, complement };
+  }
+  
+  static void check(String what, BetaCdf inc, double a, double b) {
+    double x = inc.getX();
+    double cdf, complement;
+    if(x <= 0 || x >= 1) {
+      cdf = (x <= 0) ? 0 : 1;
+      complement = 1 - cdf;
+    } else if(a == Math.rint(a) && b == Math.rint(b)) {
+      double[] tails = binomial((int) a, (int) b, x);
+      cdf = tails[0];
+      complement = tails[1];
+    } else {
+      cdf = BetaDist.cdf(a, b, BetaCdf.DEC_PREC, x);
+      complement = BetaDist.barF(a, b, BetaCdf.DEC_PREC, x);
+    }
+    if(!agree(inc.cdf(a, b), cdf) || !agree(inc.getComplement(), complement)) {
+      System.out.println(what + ": at x = " + x + ", a = " + a + ", b = " + b + " BetaCdf gives " + inc.getCdf() + " and "
+          + inc.getComplement() + ", expected " + cdf + " and " + complement);
+      System.exit(1);
+    }
+    checked++;
+  }
+  
+  static boolean agree(double value, double expected) {
+    double d = Math.abs(value - expected);
+    return d <= ABSOLUTE || d <= RELATIVE * Math.abs(expected);
+  }
+  
+  static void expect(String what, boolean holds) {
+    if(!holds) {
+      System.out.println(what);
+      System.exit(1);
+    }
+  }
+  
+  public static void main(String[] args) {
+    double[] xs = { 0.05, 0.3, 0.5, 0.7, 0.95 };
+    
+    // Steps one at a time, alternating as a balanced test sees them, past several resynchronisations
+    for(double x: xs) {
+      BetaCdf inc = new BetaCdf(1, 1, x);
+      double a = 1, b = 1;
+      for(int i = 0; i < 3 * BetaCdf.RESYNC_STEPS; i++) {
+        if(i % 100 < 100 * x) a++; else b++;
+        check("Alternating steps", inc, a, b);
+      }
+      expect("No evaluation in full after " + 3 * BetaCdf.RESYNC_STEPS + " steps at x = " + x, inc.getEvaluations() >= 3);
+    }
+    
+    // Steps on one side only, which run into a tail: the smaller side shrinks below 1/SHRINK of itself
+    for(double x: xs) {
+      for(int side = 0; side < 2; side++) {
+        BetaCdf inc = new BetaCdf(2, 2, x);
+        double a = 2, b = 2;
+        for(int i = 0; i < 400; i++) {
+          if(side == 0) a++; else b++;
+          check("Steps into a tail", inc, a, b);
+        }
+        expect("No evaluation in full in the tail at x = " + x, inc.getEvaluations() > 1);
+      }
+    }
+    
+    // Batches of steps, each moveTo 37 steps long, so that RESYNC_STEPS is crossed part way through one
+    for(double x: xs) {
+      BetaCdf inc = new BetaCdf(1, 1, x);
+      int a = 1, b = 1;
+      for(int i = 1; i <= 300; i++) {
+        a = 1 + (int) Math.round(37 * i * x);
+        b = 2 + 37 * i - a;
+        check("Batches of steps", inc, a, b);
+      }
+    }
+    
+    // Jumps by fractions and backwards, which are evaluated in full, each followed by steps from there
+    for(double x: xs) {
+      BetaCdf inc = new BetaCdf(1, 1, x);
+      double[][] jumps = { { 3.5, 2 }, { 4.5, 2.25 }, { 10, 10 }, { 9, 11 }, { 9.75, 11.5 }, { 1.5, 1 }, { 100.5, 80.5 } };
+      for(double[] j: jumps) {
+        int before = inc.getEvaluations();
+        check("Jumps", inc, j[0], j[1]);
+        expect("Jump to " + j[0] + ", " + j[1] + " was not evaluated in full", inc.getEvaluations() > before);
+        for(int i = 1; i <= 20; i++)
+          check("Steps after a jump", inc, j[0] + i / 2, j[1] + (i + 1) / 2);
+      }
+    }
+    
+    // The ends, where the cdf does not depend on the parameters
+    for(double x: new double[] { 0, 1 }) {
+      BetaCdf inc = new BetaCdf(1, 1, x);
+      for(double[] j: new double[][] { { 1, 1 }, { 2, 1 }, { 2, 5 }, { 2.5, 5 }, { 1000, 3 } }) {
+        check("Ends", inc, j[0], j[1]);
+        expect("cdf at x = " + x + " is not " + x, inc.getCdf() == x && inc.getComplement() == 1 - x);
+      }
+    }
+    
+    System.out.println("BetaCdf agrees on " + checked + " values");
+  }
+}
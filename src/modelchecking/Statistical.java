@@ -34,7 +34,6 @@ package modelchecking;
 import java.util.*;
 
 import smcmdp.*;
-import umontreal.iro.lecuyer.probdist.BetaDist;
 
 public class Statistical {
 
@@ -65,9 +64,8 @@ public class Statistical {
         r.t1 = 2 * delta;
       }
 
-      BetaDist bd = new BetaDist(nSatisfied + alpha, nTraces - nSatisfied + beta);
-
-      postProb = bd.cdf(r.t1) - bd.cdf(r.t0);
+      double a = nSatisfied + alpha, b = nTraces - nSatisfied + beta;
+      postProb = BetaCdf.cdf(a, b, r.t1) - BetaCdf.cdf(a, b, r.t0); // The interval moves, so in full
 
     } while (postProb < coefficient);
     r.n = nTraces;
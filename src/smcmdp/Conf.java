@@ -74,11 +74,43 @@ public class Conf {
   public static boolean BAYES_LEARN_FLAG = false;// Bayes factor to stop learning
   public static boolean INT_EST_FLAG = false;    // Interval estimation instead of hypothesis testing
   public static boolean DETERMINISE_FLAG = true; // Determinise policy before SMC
+  public static boolean PIPELINE_FLAG = false;   // Update policy while the next block is simulated
+  public static boolean PARALLEL_UPDATE_FLAG = false; // Update policy of different states in parallel
+  public static boolean LOCAL_REWARDS_FLAG = false;   // Threads gather rewards on their own, and add them up per mini-block
+  public static boolean FLAT_POLICY_FLAG = false;     // Keep the probabilities of all states in one array
   
   // Use a special checking rule that deals with formulae of the form
   // SAFE_1 U (CHECKPOINT & (SAFE_2 U FINAL))
   public static boolean CHECKPOINT_LAST_ACTION = false;
   
+  // Check formulae while traces are generated, and stop traces as soon as they are decided
+  public static boolean MONITOR_FLAG = false;
+  
+  // Keep only the variables the formula uses for each trace, instead of PRISM's full path
+  public static boolean ON_THE_FLY_FLAG = false;
+  
+  // Explore the model once and simulate it explicitly, optionally caching it in a file
+  public static boolean EXPLICIT_FLAG = false;
+  public static String EXPLICIT_CACHE = null;
+  
+  // Keep the policy off the heap, in files mapped from this directory
+  public static boolean MAPPED_POLICY_FLAG = false;
+  public static String MAPPED_POLICY_DIR = System.getProperty("java.io.tmpdir");
+  
+  // Checkpoint learning into this file after every block, and resume from it if asked to
+  public static String LEARN_CHECKPOINT = null;
+  public static boolean RESUME_FLAG = false;
+  
+  // Write the policy to this file after learning, or verify the policy in this file without learning
+  public static String SAVE_POLICY = null;
+  public static String LOAD_POLICY = null;
+  
+  // Number of states the policy keeps at most, 0 for no bound
+  public static int BOUNDED_POLICY_SIZE = 0;
+  
+  // Number of states whose transitions each thread caches, 0 to disable the cache
+  public static int TRANSITION_CACHE_SIZE = 0;
+  
   public static int NUM_THREADS = 1;
   public static int NUM_TRACES = 2000;
   public static int NUM_BLOCKS = 30;
@@ -106,9 +138,36 @@ public class Conf {
     } else if(opt.equals("-NoDeterminisation")) {
       DETERMINISE_FLAG = false;
       if(Conf.DEBUG_FLAG) System.out.println("Disabling determinisation before SMC...");
+    } else if(opt.equals("-pipeline")) {
+      PIPELINE_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling pipelined policy updates...");
+    } else if(opt.equals("-parallelUpdate")) {
+      PARALLEL_UPDATE_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling parallel policy updates...");
+    } else if(opt.equals("-localRewards")) {
+      LOCAL_REWARDS_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling thread-local rewards...");
+    } else if(opt.equals("-flatPolicy")) {
+      FLAT_POLICY_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling flat array policy...");
+    } else if(opt.equals("-mappedPolicy")) {
+      MAPPED_POLICY_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling off-heap policy in " + MAPPED_POLICY_DIR + "...");
+    } else if(opt.equals("-resume")) {
+      RESUME_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Resuming learning from its checkpoint...");
     } else if(opt.equals("-checkpoint")) {
       CHECKPOINT_LAST_ACTION = true;
       if(Conf.DEBUG_FLAG) System.out.println("Enabling last action identification for checkpoint formulae...");
+    } else if(opt.equals("-monitor")) {
+      MONITOR_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling online formula monitoring...");
+    } else if(opt.equals("-explicit")) {
+      EXPLICIT_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling explicit model simulation...");
+    } else if(opt.equals("-onTheFly")) {
+      ON_THE_FLY_FLAG = true;
+      if(Conf.DEBUG_FLAG) System.out.println("Enabling on-the-fly paths...");
     } else if(opt.equals("-IntervalEstimation")) {
       INT_EST_FLAG = true;
       if(Conf.DEBUG_FLAG) System.out.println("Doing interval estimation instead of hypothesis testing...");
@@ -173,6 +232,29 @@ public class Conf {
           System.err.println("[ERROR] Unrecognised policy update method: " + split[1]);
           result = false;
         }
+      } else if(split[0].equals("-mappedPolicy")) {
+        MAPPED_POLICY_FLAG = true;
+        MAPPED_POLICY_DIR = split[1];
+        if(Conf.DEBUG_FLAG) System.out.println("Enabling off-heap policy in " + MAPPED_POLICY_DIR + "...");
+      } else if(split[0].equals("-boundedPolicy")) {
+        BOUNDED_POLICY_SIZE = Integer.parseInt(split[1]);
+        if(Conf.DEBUG_FLAG) System.out.println("Keeping the policy of at most " + BOUNDED_POLICY_SIZE + " states...");
+      } else if(split[0].equals("-learnCheckpoint")) {
+        LEARN_CHECKPOINT = split[1];
+        if(Conf.DEBUG_FLAG) System.out.println("Checkpointing learning to " + LEARN_CHECKPOINT + "...");
+      } else if(split[0].equals("-savePolicy")) {
+        SAVE_POLICY = split[1];
+        if(Conf.DEBUG_FLAG) System.out.println("Saving policy to " + SAVE_POLICY + " after learning...");
+      } else if(split[0].equals("-loadPolicy")) {
+        LOAD_POLICY = split[1];
+        if(Conf.DEBUG_FLAG) System.out.println("Verifying policy in " + LOAD_POLICY + " instead of learning...");
+      } else if(split[0].equals("-explicit")) {
+        EXPLICIT_FLAG = true;
+        EXPLICIT_CACHE = split[1];
+        if(Conf.DEBUG_FLAG) System.out.println("Enabling explicit model simulation, cached in " + EXPLICIT_CACHE + "...");
+      } else if(split[0].equals("-transitionCache")) {
+        TRANSITION_CACHE_SIZE = Integer.parseInt(split[1]);
+        if(Conf.DEBUG_FLAG) System.out.println("Caching transitions of up to " + TRANSITION_CACHE_SIZE + " states per thread...");
       } else if(split[0].equals("-decaystart")) {
         DECAY_START = Integer.parseInt(split[1]);
         if(Conf.DEBUG_FLAG) System.out.println("Setting starting reinforcement before decay to " + DECAY_START + "... [needs -reward=decay]");
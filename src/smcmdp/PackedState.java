@@ -29,46 +29,62 @@
  * authors have been advised of the possibility of those damages.
  * ***********************************************************************************************/
 
-package smcmdp.reward;
+package smcmdp;
 
 import java.util.*;
 
-import smcmdp.*;
-
-import parser.*;
-
 /**
- * Class containing the rewards for one state.
+ * A state of the model packed into one or more longs by a StateCodec. Unlike
+ * PRISM's State, it is immutable and cheap to hash and compare, which makes it
+ * the key of choice for policies and rewards.
  */
-public class StateReward implements Iterable<ChoiceReward> {
-  private State state;
-  private List<ChoiceReward> rewards;
+public final class PackedState {
+  private final long w0;     // First 64 bits of the state
+  private final long[] more; // Any further words, null if the state fits into w0
+  private final int hash;
   
-  public StateReward(State state, int numChoices) {
-    this.state = state;
-    rewards = new ArrayList<ChoiceReward>(numChoices);
-    for(int i = 0; i < numChoices; i++)
-      rewards.add(new ChoiceReward());
+  public PackedState(long w0) {
+    this(w0, null);
   }
   
-  public void reset(){
-    for(ChoiceReward r : rewards)
-      r.reset();
+  public PackedState(long w0, long[] more) {
+    this.w0 = w0;
+    this.more = more;
+    long h = mix(w0);
+    if(more != null)
+      for(long w: more)
+        h = mix(h ^ w);
+    this.hash = (int) (h ^ (h >>> 32));
   }
   
-  public ChoiceReward get(int choice) { return rewards.get(choice); }
-  
-  public void updateRewards(int choice, SatResult sat){
-    ChoiceReward currentReward = rewards.get(choice);
-    if(sat.getSat()) currentReward.incrementSat();
-    else             currentReward.incrementNSat();
+  // Finaliser of MurmurHash3, so that nearby states spread over the whole table
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
   }
   
-  public String toString() { return rewards.toString(); }
-
-  public int size() { return rewards.size(); }
+  public int numWords() { return (more == null) ? 1 : 1 + more.length; }
   
-  public State getState() { return state; }
-
-  public Iterator<ChoiceReward> iterator() { return rewards.iterator(); }
-}
\ No newline at end of file
+  public long getWord(int i) { return (i == 0) ? w0 : more[i - 1]; }
+  
+  public int hashCode() { return hash; }
+  
+  public boolean equals(Object o) {
+    if(this == o) return true;
+    if(!(o instanceof PackedState)) return false;
+    PackedState that = (PackedState) o;
+    return this.hash == that.hash && this.w0 == that.w0 && Arrays.equals(this.more, that.more);
+  }
+  
+  public String toString() {
+    StringBuilder s = new StringBuilder("#").append(Long.toHexString(w0));
+    if(more != null)
+      for(long w: more)
+        s.append(":").append(Long.toHexString(w));
+    return s.toString();
+  }
+}
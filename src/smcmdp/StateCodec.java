@@ -0,0 +1,149 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package smcmdp;
+
+import parser.*;
+import parser.type.*;
+
+/**
+ * Packs PRISM states into PackedStates and back. Every variable gets as many
+ * bits as its range needs, as declared in the VarList. Variables do not
+ * straddle words, so decoding a variable only ever reads a single long.
+ * 
+ * The encoding only depends on the VarList, so codecs built from the same
+ * model agree with each other.
+ */
+public class StateCodec {
+  protected int numVars;
+  protected int numWords;
+  protected boolean[] bool;  // Whether the variable is a boolean, otherwise it is an integer
+  protected int[] low;       // Value encoded as 0
+  protected int[] word;      // Word the variable is stored in
+  protected int[] shift;     // Position of the variable's lowest bit in its word
+  protected long[] mask;     // Mask of the variable's bits, before shifting
+  
+  public StateCodec(VarList vars) {
+    numVars = vars.getNumVars();
+    bool = new boolean[numVars];
+    low = new int[numVars];
+    word = new int[numVars];
+    shift = new int[numVars];
+    mask = new long[numVars];
+    
+    int w = 0, offset = 0;
+    for(int i = 0; i < numVars; i++) {
+      Type type = vars.getType(i);
+      long range;
+      if(type instanceof TypeBool) {
+        bool[i] = true;
+        range = 2;
+      } else if(type instanceof TypeInt) {
+        low[i] = vars.getLow(i);
+        range = (long) vars.getHigh(i) - vars.getLow(i) + 1;
+      } else
+        throw new IllegalArgumentException("Cannot encode variable " + vars.getName(i) + " of type " + type.getTypeString());
+      
+      int bits = 64 - Long.numberOfLeadingZeros(Math.max(range - 1, 1));
+      if(offset + bits > 64) {
+        w++;
+        offset = 0;
+      }
+      word[i] = w;
+      shift[i] = offset;
+      mask[i] = (bits == 64) ? -1L : (1L << bits) - 1;
+      offset += bits;
+    }
+    numWords = w + 1;
+  }
+  
+  public PackedState encode(State state) {
+    if(numWords == 1)
+      return new PackedState(encodeWord(state, 0));
+    
+    long[] more = new long[numWords - 1];
+    for(int w = 1; w < numWords; w++)
+      more[w - 1] = encodeWord(state, w);
+    return new PackedState(encodeWord(state, 0), more);
+  }
+  
+  protected long encodeWord(State state, int w) {
+    long bits = 0;
+    for(int i = 0; i < numVars; i++) {
+      if(word[i] != w) continue;
+      Object o = state.varValues[i];
+      long v = bool[i] ? (((Boolean) o).booleanValue() ? 1 : 0) : ((Integer) o).intValue() - low[i];
+      bits |= (v & mask[i]) << shift[i];
+    }
+    return bits;
+  }
+  
+  public State decode(PackedState packed) {
+    State state = new State(numVars);
+    for(int i = 0; i < numVars; i++) {
+      int v = decodeValue(i, packed.getWord(word[i]));
+      if(bool[i]) state.setValue(i, v == 1);
+      else        state.setValue(i, v);
+    }
+    return state;
+  }
+  
+  /**
+   * @param var A variable
+   * @param w The word the variable is stored in, see getWordIndex
+   * @return The value of the variable, 0 or 1 for booleans
+   */
+  public int decodeValue(int var, long w) {
+    long v = (w >>> shift[var]) & mask[var];
+    return bool[var] ? (int) v : (int) (low[var] + v);
+  }
+  
+  /**
+   * @return A fingerprint of where and how each variable is encoded, which
+   * tells codecs apart that would read each other's states wrongly
+   */
+  public long getLayout() {
+    long h = numVars;
+    for(int i = 0; i < numVars; i++) {
+      h = 31 * h + (bool[i] ? 1 : 0);
+      h = 31 * h + low[i];
+      h = 31 * h + word[i];
+      h = 31 * h + shift[i];
+      h = 31 * h + mask[i];
+    }
+    return h;
+  }
+  
+  public int getWordIndex(int var) { return word[var]; }
+  
+  public int getNumVars() { return numVars; }
+  public int getNumWords() { return numWords; }
+}
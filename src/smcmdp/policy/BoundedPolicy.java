@@ -0,0 +1,188 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package smcmdp.policy;
+
+import java.util.*;
+
+import smcmdp.*;
+import smcmdp.reward.*;
+
+/**
+ * A policy that keeps at most a given number of states. States that are
+ * only visited keep the uniform distribution without being stored; they are
+ * stored once they are rewarded, i.e. once an update can change them.
+ * 
+ * When an update leaves more states than allowed, states are evicted by a
+ * clock: uniform states go first, then states that were not visited since
+ * the hand last passed them. Evicted states fall back to uniform. The states
+ * evicted by the last update are kept, so that checkpoints can log them.
+ */
+public class BoundedPolicy extends Policy {
+  protected int capacity;
+  protected List<PackedState> clock; // Stored states in the order of the hand, changed only by updates
+  protected int hand;
+  protected List<PackedState> evicted = new ArrayList<PackedState>(); // By the last update
+  
+  public BoundedPolicy(int capacity) {
+    super(Math.min(capacity, 500000));
+    this.capacity = capacity;
+    this.clock = new ArrayList<PackedState>();
+  }
+  
+  /**
+   * A stored state, which remembers whether it was visited.
+   */
+  protected static class Resident extends StatePolicy {
+    protected boolean visited = true;
+    
+    public Resident(PackedState state, int n) { super(state, n); }
+    public Resident(PackedState state, double[] policy) { super(state, policy); }
+  }
+  
+  public boolean initialise(PackedState state, int numChoices) {
+    if(p.containsKey(state))
+      return false;
+    p.put(state, new Resident(state, numChoices));
+    clock.add(state);
+    return true;
+  }
+  
+  /**
+   * Picks a choice without storing states that are not stored yet.
+   */
+  public int choose(PackedState state, int numChoices, double x) {
+    Resident r = (Resident) p.get(state);
+    if(r == null)
+      return uniformChoice(numChoices, x);
+    if(!r.visited) r.visited = true;  // Only write when needed, the state is shared
+    return r.getIndexByProbabilitySum(x);
+  }
+  
+  /**
+   * Same as choose, without marking resident states as visited.
+   */
+  public int sample(PackedState state, int numChoices, double x) {
+    StatePolicy r = p.get(state);
+    if(r == null)
+      return uniformChoice(numChoices, x);
+    return r.getIndexByProbabilitySum(x);
+  }
+  
+  /**
+   * Stores the rewarded states, updates the policy as Policy does, and then
+   * evicts states until at most capacity are left.
+   */
+  public void update(Rewards rewards) {
+    evicted.clear();
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++) {
+      PackedState state = rewards.getState(id);
+      if(state != null && !p.containsKey(state))
+        initialise(state, rewards.getNumChoices(id));
+    }
+    super.update(rewards);
+    evict();
+  }
+  
+  protected void evict() {
+    // Uniform states are of no use
+    for(int i = 0; i < clock.size() && clock.size() > capacity; )
+      if(isUniform(p.get(clock.get(i)))) remove(i);
+      else                               i++;
+    
+    // Then states that were not visited for a turn of the hand
+    while(clock.size() > capacity) {
+      if(hand >= clock.size()) hand = 0;
+      Resident r = (Resident) p.get(clock.get(hand));
+      if(r.visited) {
+        r.visited = false;
+        hand++;
+      } else
+        remove(hand);
+    }
+  }
+  
+  protected void remove(int i) {
+    evicted.add(clock.get(i));
+    p.remove(clock.get(i));
+    clock.set(i, clock.get(clock.size() - 1));
+    clock.remove(clock.size() - 1);
+  }
+  
+  protected static boolean isUniform(StatePolicy s) {
+    for(int i = 0; i < s.size(); i++)
+      if(s.get(i) != 1.0/s.size())
+        return false;
+    return true;
+  }
+  
+  public Policy copy() {
+    BoundedPolicy copy = new BoundedPolicy(capacity);
+    for(PackedState state: clock) {
+      Resident r = (Resident) p.get(state);
+      Resident c = new Resident(state, r.getPolicy().clone());
+      c.visited = r.visited;
+      copy.p.put(state, c);
+    }
+    copy.clock.addAll(clock);
+    copy.hand = hand;
+    return copy;
+  }
+  
+  /**
+   * @return The states evicted by the last update
+   */
+  public List<PackedState> getEvicted() { return evicted; }
+  
+  /**
+   * Drops a state as an eviction would, e.g. when an eviction is replayed.
+   * The clock only loses the state once settle() is called.
+   */
+  public void forget(PackedState state) { p.remove(state); }
+  
+  /**
+   * Removes forgotten states from the clock, and evicts states until at most
+   * capacity are left, e.g. after states were put back from a checkpoint.
+   */
+  public void settle() {
+    Set<PackedState> seen = new HashSet<PackedState>();
+    List<PackedState> kept = new ArrayList<PackedState>(p.size());
+    for(PackedState state: clock)
+      if(p.containsKey(state) && seen.add(state)) // Forgotten states may have been put back since
+        kept.add(state);
+    clock = kept;
+    hand = 0;
+    evict();
+    evicted.clear();
+  }
+  
+  public int getCapacity() { return capacity; }
+}
@@ -33,31 +33,144 @@ package smcmdp.policy;
 
 import java.util.*;
 
-import parser.*;
+import smcmdp.*;
 
 /**
  * This class stores a partially deterministic policy. It is deterministic
  * except for those states that were uninitialised before and that come up
  * during simulation.
  * 
- * A policy for a state is given by the index of the deterministic choice,
- * or alternatively by a uniform list of doubles.
+ * A policy for a state is given by the index of the deterministic choice
+ * and the number of its choices, or alternatively by a uniform list of doubles.
+ * 
+ * The deterministic choices are kept in an open-addressing table of state
+ * words and choices, which is filled while the policy is built and frozen
+ * afterwards, so that every step of a simulation takes a single read-only
+ * probe. States without a deterministic choice are sampled uniformly by
+ * choose, without being stored.
  */
 public class DeterministicPolicy extends Policy {
-  private Map<State, Integer> detP;
+  protected int numWords = -1;   // Words per state, known from the first state
+  protected long[] keys;         // numWords words per bucket
+  protected short[] choices;     // Choice + 1 per bucket, 0 if the bucket is empty
+  protected short[] sizes;       // Number of choices per bucket
+  protected int mask, size;
+  protected boolean frozen;
   
   public DeterministicPolicy(int numStates){
-    super();
-    detP = new HashMap<State, Integer>(numStates);
+    super(1000);
+    int capacity = 2;
+    while(capacity < 2 * numStates) capacity <<= 1;
+    choices = new short[capacity];
+    sizes = new short[capacity];
+    mask = capacity - 1;
   }
   
   public DeterministicPolicy(){
-    super();
-    detP = new HashMap<State, Integer>(10000);
+    this(10000);
   }
   
-  public void addDeterministicChoice(State state, int choiceIndex) {
-    detP.put(state, choiceIndex);
+  /**
+   * Stores the choice for the state, unless it is -1, as for states whose
+   * choices all have probability zero, which are then sampled uniformly.
+   * @param numChoices The number of choices of the state
+   */
+  public void addDeterministicChoice(PackedState state, int choiceIndex, int numChoices) {
+    if(frozen)
+      throw new IllegalStateException("Deterministic policy is frozen");
+    if(choiceIndex < 0)
+      return;
+    if(choiceIndex + 1 > Short.MAX_VALUE || choiceIndex >= numChoices || numChoices > Short.MAX_VALUE)
+      throw new IllegalArgumentException("Choice " + choiceIndex + " of state " + state + " out of range");
+    if(numWords < 0) {
+      numWords = state.numWords();
+      keys = new long[choices.length * numWords];
+    }
+    if(state.numWords() != numWords)
+      throw new IllegalArgumentException("State " + state + " of a different size");
+    if(2 * (size + 1) > choices.length)
+      rehash(2 * choices.length);
+    
+    int bucket = find(state);
+    if(choices[bucket] == 0) {
+      for(int i = 0; i < numWords; i++)
+        keys[bucket * numWords + i] = state.getWord(i);
+      size++;
+    }
+    choices[bucket] = (short) (choiceIndex + 1);
+    sizes[bucket] = (short) numChoices;
+  }
+  
+  /**
+   * Stops the policy from changing, before it is handed to simulations.
+   */
+  public void freeze() { frozen = true; }
+  
+  protected void rehash(int capacity) {
+    long[] oldKeys = keys;
+    short[] oldChoices = choices, oldSizes = sizes;
+    keys = new long[capacity * numWords];
+    choices = new short[capacity];
+    sizes = new short[capacity];
+    mask = capacity - 1;
+    for(int b = 0; b < oldChoices.length; b++) {
+      if(oldChoices[b] == 0) continue;
+      int h = mix(oldKeys, b * numWords);
+      int to = h & mask;
+      while(choices[to] != 0) to = (to + 1) & mask;
+      System.arraycopy(oldKeys, b * numWords, keys, to * numWords, numWords);
+      choices[to] = oldChoices[b];
+      sizes[to] = oldSizes[b];
+    }
+  }
+  
+  // The hash code of the PackedState with these words
+  protected int mix(long[] words, int from) {
+    return new PackedState(words[from], (numWords == 1) ? null : Arrays.copyOfRange(words, from + 1, from + numWords)).hashCode();
+  }
+  
+  /**
+   * @return The bucket of the state, or the empty bucket where it would go
+   */
+  protected int find(PackedState state) {
+    int bucket = state.hashCode() & mask;
+    if(state.numWords() != numWords)
+      return -1;
+    while(choices[bucket] != 0) {
+      int i = 0;
+      while(i < numWords && keys[bucket * numWords + i] == state.getWord(i)) i++;
+      if(i == numWords)
+        return bucket;
+      bucket = (bucket + 1) & mask;
+    }
+    return bucket;
+  }
+  
+  /**
+   * @return The deterministic choice of the state, or -1 if it has none
+   */
+  public int getDeterministicChoice(PackedState state) {
+    int bucket = find(state);
+    return (bucket < 0) ? -1 : choices[bucket] - 1;
+  }
+  
+  /**
+   * @return The number of choices of a state with a deterministic choice, or -1
+   */
+  public int getNumChoices(PackedState state) {
+    int bucket = find(state);
+    return (bucket < 0 || choices[bucket] == 0) ? -1 : sizes[bucket];
+  }
+  
+  /**
+   * @return The states with a deterministic choice
+   */
+  public List<PackedState> getDeterministicStates() {
+    List<PackedState> states = new ArrayList<PackedState>(size);
+    for(int b = 0; b < choices.length; b++)
+      if(choices[b] != 0)
+        states.add(new PackedState(keys[b * numWords], (numWords == 1) ? null : Arrays.copyOfRange(keys, b * numWords + 1, (b + 1) * numWords)));
+    return states;
   }
   
   /** 
@@ -65,9 +178,10 @@ public class DeterministicPolicy extends Policy {
    * @param choiceIndex a choice
    * @return Probability of choosing choice given by choiceIndex from state s.
    */
-  public Double getProbability(State state, int choiceIndex){
-    if(detP.containsKey(state))
-      return (detP.get(state) == choiceIndex) ? 1.0 : 0;
+  public Double getProbability(PackedState state, int choiceIndex){
+    int choice = getDeterministicChoice(state);
+    if(choice >= 0)
+      return (choice == choiceIndex) ? 1.0 : 0;
     
     return super.getProbability(state, choiceIndex);
   }
@@ -76,16 +190,34 @@ public class DeterministicPolicy extends Policy {
    * @param state
    * @return Whether the policy is defined for the given state.
    */
-  public boolean defined(State state){
-    return detP.containsKey(state) || super.defined(state);
+  public boolean defined(PackedState state){
+    return getDeterministicChoice(state) >= 0 || super.defined(state);
   }
  
-  public int getIndexByProbabilitySum(State state, double x) {
-    if(detP.containsKey(state))
-      return detP.get(state);
+  public int getIndexByProbabilitySum(PackedState state, double x) {
+    int choice = getDeterministicChoice(state);
+    if(choice >= 0)
+      return choice;
     
     return super.getIndexByProbabilitySum(state, x);
   }
   
-  public int numStates() { return p.size() + detP.size(); }
+  /**
+   * Picks the deterministic choice of a state, or a uniform one for states
+   * without, as a uniform StatePolicy would, so that simulations never write.
+   */
+  public int choose(PackedState state, int numChoices, double x) {
+    int choice = getDeterministicChoice(state);
+    if(choice >= 0)
+      return choice;
+    if(super.defined(state))
+      return super.getIndexByProbabilitySum(state, x);
+    return uniformChoice(numChoices, x);
+  }
+  
+  public int sample(PackedState state, int numChoices, double x) {
+    return choose(state, numChoices, x);
+  }
+  
+  public int numStates() { return p.size() + size; }
 }
@@ -0,0 +1,294 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package smcmdp.policy;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import smcmdp.*;
+import smcmdp.reward.*;
+
+/**
+ * A policy that keeps the probabilities of all states in one arena of doubles
+ * instead of a StatePolicy per state. Each state gets a dense id, and its
+ * choices occupy consecutive slots from the offset of the state, next to the
+ * running sums of their probabilities that sampling searches.
+ * 
+ * The arena is split into pages that are allocated as they are needed, so
+ * that workers can add states while others sample. The choices of a state
+ * never straddle two pages.
+ * 
+ * Policy updates see the states through views returned by getStatePolicy.
+ * Running sums of rewarded states whose probabilities changed are rebuilt at
+ * the end of update(), and sampled by a linear scan until then.
+ */
+public class FlatPolicy extends Policy {
+  protected static final int PAGE_BITS = 16;
+  protected static final int PAGE_SIZE = 1 << PAGE_BITS;
+  protected static final int PAGE_MASK = PAGE_SIZE - 1;
+  protected static final int MAX_PAGES = 1 << (31 - PAGE_BITS);
+  
+  protected ConcurrentHashMap<PackedState, Integer> ids;
+  protected AtomicInteger nextId, nextSlot;
+  
+  // Indexed by id
+  protected AtomicReferenceArray<PackedState[]> states;
+  protected AtomicReferenceArray<int[]> offsets, numChoices;
+  protected AtomicReferenceArray<boolean[]> stale;   // Whether the running sums are out of date
+  protected AtomicReferenceArray<int[]> bestChoices; // The most likely choice, see StatePolicy
+  
+  // Indexed by offset + choice
+  protected AtomicReferenceArray<double[]> probabilities, cumulative;
+  
+  public FlatPolicy() { this(1000); }
+  
+  public FlatPolicy(int n) {
+    super(1);
+    ids = new ConcurrentHashMap<PackedState, Integer>(n);
+    nextId = new AtomicInteger();
+    nextSlot = new AtomicInteger();
+    states = new AtomicReferenceArray<PackedState[]>(MAX_PAGES);
+    offsets = new AtomicReferenceArray<int[]>(MAX_PAGES);
+    numChoices = new AtomicReferenceArray<int[]>(MAX_PAGES);
+    stale = new AtomicReferenceArray<boolean[]>(MAX_PAGES);
+    bestChoices = new AtomicReferenceArray<int[]>(MAX_PAGES);
+    probabilities = new AtomicReferenceArray<double[]>(MAX_PAGES);
+    cumulative = new AtomicReferenceArray<double[]>(MAX_PAGES);
+  }
+  
+  public StatePolicy getStatePolicy(PackedState state) {
+    Integer id = ids.get(state);
+    return (id == null) ? null : new Slice(state, id);
+  }
+  
+  public boolean defined(PackedState state) {
+    return ids.containsKey(state);
+  }
+  
+  public boolean initialise(PackedState state, int numChoices) {
+    if(ids.containsKey(state))
+      return false;
+    double[] uniform = new double[numChoices];
+    Arrays.fill(uniform, 1.0/numChoices);
+    return put(state, uniform);
+  }
+  
+  /**
+   * Adds a state with the given probabilities, unless it is there already.
+   * Its slots are filled in before its id is published, so that whoever
+   * finds the state sees them.
+   */
+  protected boolean put(PackedState state, double[] policy) {
+    int n = policy.length;
+    int id = nextId.getAndIncrement();
+    int offset, old;
+    do {
+      old = nextSlot.get();
+      offset = ((old & PAGE_MASK) + n > PAGE_SIZE) ? (old | PAGE_MASK) + 1 : old; // Start a new page
+    } while(!nextSlot.compareAndSet(old, offset + n));
+    if(id < 0 || offset < 0 || offset + n < 0)
+      throw new IllegalStateException("Too many states in policy");
+    
+    page(states, id)[id & PAGE_MASK] = state;
+    intPage(offsets, id)[id & PAGE_MASK] = offset;
+    intPage(numChoices, id)[id & PAGE_MASK] = n;
+    intPage(bestChoices, id)[id & PAGE_MASK] = StatePolicy.UNKNOWN;
+    booleanPage(id);
+    System.arraycopy(policy, 0, doublePage(probabilities, offset), offset & PAGE_MASK, n);
+    buildCumulative(offset, n);
+    
+    if(ids.putIfAbsent(state, id) == null)
+      return true;
+    // Somebody else was faster, leave a hole
+    states.get(id >>> PAGE_BITS)[id & PAGE_MASK] = null;
+    return false;
+  }
+  
+  // Same choice as the linear scan in SimulatorEngine.java, see StatePolicy
+  public int getIndexByProbabilitySum(PackedState state, double x) {
+    return getIndexByProbabilitySum(ids.get(state), x);
+  }
+  
+  protected int getIndexByProbabilitySum(int id, double x) {
+    int offset = getOffset(id), n = getNumChoices(id);
+    int base = offset & PAGE_MASK;
+    
+    if(stale.get(id >>> PAGE_BITS)[id & PAGE_MASK]) {
+      double[] p = probabilities.get(offset >>> PAGE_BITS);
+      double d = 0.0;
+      for(int i = 0; i < n - 1; i++) {
+        d += p[base + i];
+        if(x < d) return i;
+      }
+      return n - 1;
+    }
+    
+    double[] c = cumulative.get(offset >>> PAGE_BITS);
+    int lo = base, hi = base + n - 1;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(x >= c[mid]) lo = mid + 1;
+      else            hi = mid;
+    }
+    return lo - base;
+  }
+  
+  /**
+   * Updates the policy as Policy does, then rebuilds the running sums of the
+   * states whose probabilities changed. Updates only change rewarded states,
+   * so only those are looked at, not all states of the policy.
+   */
+  public void update(Rewards rewards) {
+    super.update(rewards);
+    for(int i = rewards.getFirstId(); i < rewards.getEndId(); i++) {
+      PackedState state = rewards.getState(i);
+      Integer id = (state == null) ? null : ids.get(state);
+      if(id == null) continue;
+      boolean[] page = stale.get(id >>> PAGE_BITS);
+      if(!page[id & PAGE_MASK]) continue;
+      buildCumulative(getOffset(id), getNumChoices(id));
+      page[id & PAGE_MASK] = false;
+    }
+  }
+  
+  protected void buildCumulative(int offset, int n) {
+    double[] p = probabilities.get(offset >>> PAGE_BITS);
+    double[] c = doublePage(cumulative, offset);
+    double d = 0.0;
+    for(int i = offset & PAGE_MASK; i < (offset & PAGE_MASK) + n; i++) {
+      d += p[i];                      // Summed in the same order as the linear scan
+      c[i] = d;
+    }
+  }
+  
+  /**
+   * @return A compact copy of this policy, without the holes left by races.
+   */
+  public Policy copy() {
+    FlatPolicy copy = new FlatPolicy(ids.size());
+    for(Map.Entry<PackedState, Integer> e: ids.entrySet())
+      copy.put(e.getKey(), new Slice(e.getKey(), e.getValue()).getPolicy());
+    return copy;
+  }
+  
+  public int numStates() { return ids.size(); }
+  
+  public Iterable<PackedState> states() { return ids.keySet(); }
+  
+  public void outputPolicy() {
+    System.out.println(this);
+  }
+  
+  public String toString() {
+    StringBuilder s = new StringBuilder("{");
+    for(Map.Entry<PackedState, Integer> e: ids.entrySet()) {
+      if(s.length() > 1) s.append(", ");
+      s.append(e.getKey()).append("=").append(Arrays.toString(new Slice(e.getKey(), e.getValue()).getPolicy()));
+    }
+    return s.append("}").toString();
+  }
+  
+  protected int getOffset(int id) { return offsets.get(id >>> PAGE_BITS)[id & PAGE_MASK]; }
+  protected int getNumChoices(int id) { return numChoices.get(id >>> PAGE_BITS)[id & PAGE_MASK]; }
+  
+  /**
+   * The policy of one state, reading and writing the arena.
+   */
+  protected class Slice extends StatePolicy {
+    protected int id, offset, n;
+    protected double[] page;
+    
+    protected Slice(PackedState state, int id) {
+      super(state, (double[])null);
+      this.id = id;
+      this.offset = getOffset(id) & PAGE_MASK;
+      this.n = getNumChoices(id);
+      this.page = probabilities.get(getOffset(id) >>> PAGE_BITS);
+    }
+    
+    public double get(int index) { return page[offset + index]; }
+    public int size() { return n; }
+    
+    public void set(int i, double updatedProbability) {
+      double old = page[offset + i];
+      page[offset + i] = updatedProbability;
+      stale.get(id >>> PAGE_BITS)[id & PAGE_MASK] = true;
+      track(i, old, updatedProbability);
+    }
+    
+    protected int loadBest() { return bestChoices.get(id >>> PAGE_BITS)[id & PAGE_MASK]; }
+    protected void storeBest(int b) { bestChoices.get(id >>> PAGE_BITS)[id & PAGE_MASK] = b; }
+    
+    public double[] getPolicy() { return Arrays.copyOfRange(page, offset, offset + n); }
+    
+    // Unlike set, changes the whole distribution at once, so the running sums are rebuilt right away
+    public void setState(double[] policy) {
+      System.arraycopy(policy, 0, page, offset, n);
+      buildCumulative(getOffset(id), n);
+      stale.get(id >>> PAGE_BITS)[id & PAGE_MASK] = false;
+      storeBest(UNKNOWN);
+    }
+    
+    public int getIndexByProbabilitySum(double x) { return FlatPolicy.this.getIndexByProbabilitySum(id, x); }
+    
+    public String toString() { return Arrays.toString(getPolicy()); }
+  }
+  
+  protected static PackedState[] page(AtomicReferenceArray<PackedState[]> pages, int id) {
+    PackedState[] page = pages.get(id >>> PAGE_BITS);
+    if(page == null && !pages.compareAndSet(id >>> PAGE_BITS, null, page = new PackedState[PAGE_SIZE]))
+      page = pages.get(id >>> PAGE_BITS);
+    return page;
+  }
+  
+  protected static int[] intPage(AtomicReferenceArray<int[]> pages, int id) {
+    int[] page = pages.get(id >>> PAGE_BITS);
+    if(page == null && !pages.compareAndSet(id >>> PAGE_BITS, null, page = new int[PAGE_SIZE]))
+      page = pages.get(id >>> PAGE_BITS);
+    return page;
+  }
+  
+  protected boolean[] booleanPage(int id) {
+    boolean[] page = stale.get(id >>> PAGE_BITS);
+    if(page == null && !stale.compareAndSet(id >>> PAGE_BITS, null, page = new boolean[PAGE_SIZE]))
+      page = stale.get(id >>> PAGE_BITS);
+    return page;
+  }
+  
+  protected static double[] doublePage(AtomicReferenceArray<double[]> pages, int slot) {
+    double[] page = pages.get(slot >>> PAGE_BITS);
+    if(page == null && !pages.compareAndSet(slot >>> PAGE_BITS, null, page = new double[PAGE_SIZE]))
+      page = pages.get(slot >>> PAGE_BITS);
+    return page;
+  }
+}
@@ -0,0 +1,432 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package smcmdp.policy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import smcmdp.*;
+import smcmdp.reward.*;
+
+/**
+ * A policy that keeps its states and probabilities off the heap, in files
+ * mapped into memory, so that it can grow beyond the heap and page to disk.
+ * 
+ * States are found through an open-addressing table of ids with linear
+ * probing, whose capacity is fixed when the policy is made. Since the table
+ * file is sparse, only the pages of buckets in use take up memory or disk.
+ * Each id has the words of its state in the keys file, and in the records
+ * file the offset of its choices, their number, whether their running
+ * sums are out of date and the most likely choice, as StatePolicy keeps it. The probabilities of the choices and their running
+ * sums are at that offset in the probabilities and cumulative files.
+ * 
+ * States are added under a lock, and found without one: a state is written
+ * entirely before the number of states is raised, which is read before the
+ * table, so ids from that number on are skipped as not written yet. Whoever
+ * does not find a state takes the lock and looks again. As in FlatPolicy,
+ * policy updates see the states through views, and running sums are rebuilt at the end of update().
+ * 
+ * The files are scratch space in the given directory, deleted on exit or
+ * when the policy is released.
+ */
+public class MappedPolicy extends Policy {
+  public static final int DEFAULT_INDEX_BITS = 27;  // 128M buckets, for up to 96M states
+  
+  protected File dir;
+  protected int indexBits, indexMask;
+  protected Region index, keys, records, probabilities, cumulative;
+  
+  protected volatile int numWords = -1;  // Words per state, known from the first state
+  protected volatile int size;           // Number of states, i.e. the next id
+  protected long nextSlot;               // Next free choice, guarded by this
+  
+  public MappedPolicy(File dir) throws IOException { this(dir, DEFAULT_INDEX_BITS); }
+  
+  public MappedPolicy(File dir, int indexBits) throws IOException {
+    super(1);
+    this.dir = dir;
+    this.indexBits = indexBits;
+    this.indexMask = (1 << indexBits) - 1;
+    index         = new Region(dir, "index");
+    keys          = new Region(dir, "keys");
+    records       = new Region(dir, "records");
+    probabilities = new Region(dir, "probabilities");
+    cumulative    = new Region(dir, "cumulative");
+  }
+  
+  public StatePolicy getStatePolicy(PackedState state) {
+    int id = find(state);
+    return (id < 0) ? null : new Slice(state, id);
+  }
+  
+  public boolean defined(PackedState state) {
+    return find(state) >= 0;
+  }
+  
+  public boolean initialise(PackedState state, int numChoices) {
+    if(find(state) >= 0)
+      return false;
+    double[] uniform = new double[numChoices];
+    Arrays.fill(uniform, 1.0/numChoices);
+    return put(state, uniform);
+  }
+  
+  /**
+   * @return The id of the state, or -1 if it has none yet, or was added by
+   *         another thread since this one last took the lock
+   */
+  protected int find(PackedState state) {
+    int end = size;  // Read first, so that the states below it are seen whole
+    int n = numWords;
+    if(n < 0)
+      return -1;
+    if(state.numWords() != n)
+      throw new IllegalArgumentException("State " + state + " does not have " + n + " words");
+    
+    for(int bucket = state.hashCode() & indexMask; ; bucket = (bucket + 1) & indexMask) {
+      int id = index.getInt(4L * bucket) - 1;
+      if(id < 0)
+        return -1;
+      if(id < end && matches(id, state))
+        return id;
+    }
+  }
+  
+  /**
+   * Same as find, but sees every state added so far.
+   */
+  protected synchronized int findAll(PackedState state) {
+    return find(state);
+  }
+  
+  protected boolean matches(int id, PackedState state) {
+    long base = 8L * numWords * id;
+    for(int i = 0; i < numWords; i++)
+      if(keys.getLong(base + 8L * i) != state.getWord(i))
+        return false;
+    return true;
+  }
+  
+  /**
+   * Adds a state with the given probabilities, unless it is there already.
+   */
+  protected synchronized boolean put(PackedState state, double[] policy) {
+    if(numWords < 0)
+      numWords = state.numWords();
+    if(find(state) >= 0)
+      return false;
+    if(size >= (indexMask >>> 2) * 3)
+      throw new IllegalStateException("Policy index full, it takes up to " + (indexMask >>> 2) * 3 + " states");
+    
+    int id = size, n = policy.length;
+    long offset = nextSlot;
+    nextSlot += n;
+    
+    for(int i = 0; i < n; i++)
+      probabilities.putDouble(8L * (offset + i), policy[i]);
+    buildCumulative(offset, n);
+    records.putLong(24L * id, offset);
+    records.putInt(24L * id + 8, n);
+    records.putInt(24L * id + 12, 0);  // The files may be reused, see copy(Policy)
+    records.putInt(24L * id + 16, StatePolicy.UNKNOWN);
+    for(int i = 0; i < numWords; i++)
+      keys.putLong(8L * (numWords * id + i), state.getWord(i));
+    
+    int bucket = state.hashCode() & indexMask;
+    while(index.getInt(4L * bucket) != 0)
+      bucket = (bucket + 1) & indexMask;
+    index.putInt(4L * bucket, id + 1);  // Last, so that the state is complete once found
+    size = id + 1;
+    return true;
+  }
+  
+  // Same choice as the linear scan in SimulatorEngine.java, see StatePolicy
+  public int getIndexByProbabilitySum(PackedState state, double x) {
+    int id = find(state);
+    if(id < 0) id = findAll(state);
+    if(id < 0)
+      throw new IllegalArgumentException("No policy for state " + state);
+    return getIndexByProbabilitySum(id, x);
+  }
+  
+  protected int getIndexByProbabilitySum(int id, double x) {
+    long offset = getOffset(id);
+    int n = getNumChoices(id);
+    
+    if(isStale(id)) {
+      double d = 0.0;
+      for(int i = 0; i < n - 1; i++) {
+        d += probabilities.getDouble(8L * (offset + i));
+        if(x < d) return i;
+      }
+      return n - 1;
+    }
+    
+    int lo = 0, hi = n - 1;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(x >= cumulative.getDouble(8L * (offset + mid))) lo = mid + 1;
+      else                                                hi = mid;
+    }
+    return lo;
+  }
+  
+  /**
+   * Updates the policy as Policy does, then rebuilds the running sums of the
+   * rewarded states whose probabilities changed, as in FlatPolicy.
+   */
+  public void update(Rewards rewards) {
+    super.update(rewards);
+    for(int i = rewards.getFirstId(); i < rewards.getEndId(); i++) {
+      PackedState state = rewards.getState(i);
+      if(state == null) continue;
+      int id = find(state);
+      if(id < 0) id = findAll(state);
+      if(id < 0 || !isStale(id)) continue;
+      buildCumulative(getOffset(id), getNumChoices(id));
+      records.putInt(24L * id + 12, 0);
+    }
+  }
+  
+  protected void buildCumulative(long offset, int n) {
+    double d = 0.0;
+    for(int i = 0; i < n; i++) {
+      d += probabilities.getDouble(8L * (offset + i)); // Summed in the same order as the linear scan
+      cumulative.putDouble(8L * (offset + i), d);
+    }
+  }
+  
+  /**
+   * @return A copy of this policy in new files in the same directory
+   */
+  public Policy copy() {
+    try {
+      MappedPolicy copy = new MappedPolicy(dir, indexBits);
+      for(int id = 0; id < size; id++)
+        copy.put(getState(id), new Slice(null, id).getPolicy());
+      return copy;
+    } catch(IOException e) {
+      throw new RuntimeException("Could not copy policy: " + e.getMessage(), e);
+    }
+  }
+  
+  /**
+   * Copies this policy into the files of the spare policy, if it is a
+   * MappedPolicy of the same capacity, so that pipelined updates take turns
+   * with two sets of files instead of making new ones every block.
+   */
+  public Policy copy(Policy spare) {
+    if(!(spare instanceof MappedPolicy) || spare == this || ((MappedPolicy) spare).indexBits != indexBits)
+      return super.copy(spare);
+    MappedPolicy copy = (MappedPolicy) spare;
+    copy.clear();
+    for(int id = 0; id < size; id++)
+      copy.put(getState(id), new Slice(null, id).getPolicy());
+    return copy;
+  }
+  
+  /**
+   * Removes all states. Only the buckets in use are cleared, the other files
+   * are overwritten as states are added again.
+   */
+  protected synchronized void clear() {
+    for(int id = 0; id < size; id++) {
+      int bucket = getState(id).hashCode() & indexMask;
+      while(index.getInt(4L * bucket) != id + 1)  // Also past buckets cleared already
+        bucket = (bucket + 1) & indexMask;
+      index.putInt(4L * bucket, 0);
+    }
+    size = 0;
+    nextSlot = 0;
+  }
+  
+  /**
+   * Closes and deletes the files. Their space is given back once the mappings
+   * are collected.
+   */
+  public void release() {
+    index.release();
+    keys.release();
+    records.release();
+    probabilities.release();
+    cumulative.release();
+  }
+  
+  public int numStates() { return size; }
+  
+  public Iterable<PackedState> states() {
+    return new Iterable<PackedState>() {
+      public Iterator<PackedState> iterator() {
+        return new Iterator<PackedState>() {
+          int id = 0, end = size;
+          public boolean hasNext() { return id < end; }
+          public PackedState next() { return getState(id++); }
+          public void remove() { throw new UnsupportedOperationException(); }
+        };
+      }
+    };
+  }
+  
+  protected PackedState getState(int id) {
+    long base = 8L * numWords * id;
+    long[] more = (numWords == 1) ? null : new long[numWords - 1];
+    for(int i = 1; i < numWords; i++)
+      more[i - 1] = keys.getLong(base + 8L * i);
+    return new PackedState(keys.getLong(base), more);
+  }
+  
+  public void outputPolicy() {
+    System.out.println(this);
+  }
+  
+  public String toString() {
+    StringBuilder s = new StringBuilder("{");
+    for(int id = 0; id < size; id++) {
+      if(id > 0) s.append(", ");
+      s.append(getState(id)).append("=").append(Arrays.toString(new Slice(null, id).getPolicy()));
+    }
+    return s.append("}").toString();
+  }
+  
+  protected long getOffset(int id) { return records.getLong(24L * id); }
+  protected int getNumChoices(int id) { return records.getInt(24L * id + 8); }
+  protected boolean isStale(int id) { return records.getInt(24L * id + 12) != 0; }
+  
+  /**
+   * The policy of one state, reading and writing the mapped files.
+   */
+  protected class Slice extends StatePolicy {
+    protected int id, n;
+    protected long offset;
+    
+    protected Slice(PackedState state, int id) {
+      super(state, (double[])null);
+      this.id = id;
+      this.offset = getOffset(id);
+      this.n = getNumChoices(id);
+    }
+    
+    public double get(int index) { return probabilities.getDouble(8L * (offset + index)); }
+    public int size() { return n; }
+    
+    public void set(int i, double updatedProbability) {
+      double old = get(i);
+      probabilities.putDouble(8L * (offset + i), updatedProbability);
+      records.putInt(24L * id + 12, 1);
+      track(i, old, updatedProbability);
+    }
+    
+    protected int loadBest() { return records.getInt(24L * id + 16); }
+    protected void storeBest(int b) { records.putInt(24L * id + 16, b); }
+    
+    public double[] getPolicy() {
+      double[] policy = new double[n];
+      for(int i = 0; i < n; i++)
+        policy[i] = get(i);
+      return policy;
+    }
+    
+    // Unlike set, changes the whole distribution at once, so the running sums are rebuilt right away
+    public void setState(double[] policy) {
+      for(int i = 0; i < n; i++)
+        probabilities.putDouble(8L * (offset + i), policy[i]);
+      buildCumulative(offset, n);
+      records.putInt(24L * id + 12, 0);
+      storeBest(UNKNOWN);
+    }
+    
+    public int getIndexByProbabilitySum(double x) { return MappedPolicy.this.getIndexByProbabilitySum(id, x); }
+    
+    public String toString() { return Arrays.toString(getPolicy()); }
+  }
+  
+  /**
+   * A file mapped in chunks as it grows. Values never straddle chunks, since
+   * they are at multiples of their size.
+   */
+  protected static class Region {
+    protected static final int CHUNK_BITS = 26;   // 64MB
+    protected static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+    
+    protected File path;
+    protected RandomAccessFile file;
+    protected volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    
+    protected Region(File dir, String name) throws IOException {
+      path = File.createTempFile("policy-", "." + name, dir);
+      path.deleteOnExit();
+      file = new RandomAccessFile(path, "rw");
+    }
+    
+    protected synchronized void release() {
+      chunks = new MappedByteBuffer[0];
+      try {
+        file.close();
+      } catch(IOException e) {
+        System.err.println("*** WARNING *** Could not close policy file: " + e.getMessage());
+      }
+      path.delete();
+    }
+    
+    protected ByteBuffer chunk(long pos) {
+      int c = (int) (pos >>> CHUNK_BITS);
+      MappedByteBuffer[] cs = chunks;
+      return (c < cs.length) ? cs[c] : grow(c);
+    }
+    
+    protected synchronized ByteBuffer grow(int c) {
+      MappedByteBuffer[] cs = chunks;
+      if(c < cs.length)
+        return cs[c];
+      cs = Arrays.copyOf(cs, c + 1);
+      try {
+        for(int i = chunks.length; i <= c; i++) {
+          cs[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) i << CHUNK_BITS, 1L << CHUNK_BITS);
+          cs[i].order(ByteOrder.nativeOrder());
+        }
+      } catch(IOException e) {
+        throw new RuntimeException("Could not map policy file: " + e.getMessage(), e);
+      }
+      chunks = cs;
+      return cs[c];
+    }
+    
+    public int getInt(long pos)       { return chunk(pos).getInt((int) (pos & CHUNK_MASK)); }
+    public long getLong(long pos)     { return chunk(pos).getLong((int) (pos & CHUNK_MASK)); }
+    public double getDouble(long pos) { return chunk(pos).getDouble((int) (pos & CHUNK_MASK)); }
+    public void putInt(long pos, int v)       { chunk(pos).putInt((int) (pos & CHUNK_MASK), v); }
+    public void putLong(long pos, long v)     { chunk(pos).putLong((int) (pos & CHUNK_MASK), v); }
+    public void putDouble(long pos, double v) { chunk(pos).putDouble((int) (pos & CHUNK_MASK), v); }
+  }
+}
@@ -34,7 +34,6 @@ package smcmdp.policy;
 import java.util.*;
 import java.util.concurrent.*;
 
-import parser.*;
 import smcmdp.*;
 import smcmdp.reward.*;
 
@@ -44,24 +43,28 @@ import smcmdp.reward.*;
  * to each state of the MDP.
  */
 public class Policy {
-  protected Map<State, StatePolicy> p;
+  protected Map<PackedState, StatePolicy> p;
   
   public Policy(){
-    this.p = new ConcurrentHashMap<State, StatePolicy>(500000);
+    this(500000);
+  }
+  
+  protected Policy(int n){
+    this.p = new ConcurrentHashMap<PackedState, StatePolicy>(n);
   }
   
   /**
    * @param state A state
    * @return The policy for that state, null otherwise
    */
-  public StatePolicy getStatePolicy(State state){ return p.get(state); }
+  public StatePolicy getStatePolicy(PackedState state){ return p.get(state); }
   
   /** 
    * @param state a state
    * @param choiceIndex a choice
    * @return Probability of choosing choice given by choiceIndex from state s.
    */
-  public Double getProbability(State state, int choiceIndex){
+  public Double getProbability(PackedState state, int choiceIndex){
     StatePolicy choice = getStatePolicy(state);
     if(choice == null)
       return -1.0;
@@ -73,7 +76,7 @@ public class Policy {
    * @param state
    * @return Whether the policy is defined for the given state.
    */
-  public boolean defined(State state){
+  public boolean defined(PackedState state){
     return p.containsKey(state);
   }
   
@@ -83,7 +86,7 @@ public class Policy {
    * @param numChoices
    * @return
    */
-  public boolean initialise(State state, int numChoices){
+  public boolean initialise(PackedState state, int numChoices){
     StatePolicy choice = getStatePolicy(state);
     if(choice == null) {
       choice = new StatePolicy(state, numChoices);
@@ -96,15 +99,41 @@ public class Policy {
     return false;
   }
  
-  // Adapted from SimulatorEngine.java
-  public int getIndexByProbabilitySum(State state, double x) {
-    List<Double> choice = getStatePolicy(state).getPolicy();
-    int n = choice.size();
-    double d = 0.0;
-    int i;
-    for (i = 0; x >= d && i < n; i++)
-      d += choice.get(i);
-    return i - 1;
+  // Same choice as the linear scan in SimulatorEngine.java, see StatePolicy
+  public int getIndexByProbabilitySum(PackedState state, double x) {
+    return getStatePolicy(state).getIndexByProbabilitySum(x);
+  }
+  
+  /**
+   * Picks a choice as getIndexByProbabilitySum does, for a state that may not
+   * have been visited before, whose policy is then initialised uniformly.
+   */
+  public int choose(PackedState state, int numChoices, double x) {
+    if(!defined(state))
+      initialise(state, numChoices);
+    return getIndexByProbabilitySum(state, x);
+  }
+  
+  /**
+   * Picks a choice as choose does, but without writing to the policy, as in
+   * model checking. States not visited before are sampled uniformly instead.
+   */
+  public int sample(PackedState state, int numChoices, double x) {
+    if(!defined(state))
+      return uniformChoice(numChoices, x);
+    return getIndexByProbabilitySum(state, x);
+  }
+  
+  /**
+   * @return The choice a uniform StatePolicy with numChoices choices picks for x
+   */
+  protected static int uniformChoice(int numChoices, double x) {
+    double d = 0.0;                   // Summed as the running sums of StatePolicy
+    for(int i = 0; i < numChoices - 1; i++) {
+      d += 1.0/numChoices;
+      if(x < d) return i;
+    }
+    return numChoices - 1;
   }
   
   /**
@@ -122,21 +151,22 @@ public class Policy {
     if(history < 0 || history > 1 || epsilon < 0 || epsilon > 1) System.err.println("*** WARNING *** Alpha/epsilon should be between 0 and 1.");
     
     // Go through all states for which we have rewards
-    for(Map.Entry<State, StateReward> e: rewards.getRewards().entrySet()){
-      State state = e.getKey();                  // The state
-      StateReward localRewards = e.getValue();  // Rewards each choice of the state
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++){
+      PackedState state = rewards.getState(id);  // The state
+      if(state == null) // Unused id
+        continue;
+      int numChoices = rewards.getNumChoices(id); // Rewards each choice of the state
       StatePolicy localPolicy = getStatePolicy(state);   // Policy for this state, i.e. probabilities for each choice
       
-      assert(localPolicy.size() == localRewards.size());
+      assert(localPolicy.size() == numChoices);
       
       // Compute condensed rewards, i.e. nSat / (nSat + nNotSat)
       double max = Double.NEGATIVE_INFINITY;
       int maxIndex = -1;
-      double[] successProbs = new double[localRewards.size()];
+      double[] successProbs = new double[numChoices];
       for(int i = 0; i < localPolicy.size(); i++) {
-        ChoiceReward r = localRewards.get(i);
-        int sat = r.getSat();
-        int nsat = r.getNSat();
+        long sat = rewards.getSat(id, i);
+        long nsat = rewards.getNSat(id, i);
         // If we never tried this action-state pair, we simply use the previous policy's value
         double successProb = (sat + nsat > 0) ? 1.0 * sat / (sat + nsat) : localPolicy.get(i);
         successProbs[i] = successProb;
@@ -148,7 +178,7 @@ public class Policy {
       
       // Count the sum for normalisation
       double normConst = 0;
-      for(int i = 0; i < localRewards.size(); i++)
+      for(int i = 0; i < numChoices; i++)
         normConst = normConst + successProbs[i];
       
       // Update probability with alpha*(old probability) + (1-alpha)* (% counts)
@@ -166,28 +196,48 @@ public class Policy {
   }
   
   
+  /**
+   * @return A copy of this policy that can be updated without changing this one.
+   */
+  public Policy copy() {
+    Policy copy = new Policy();
+    for(Map.Entry<PackedState, StatePolicy> e: p.entrySet())
+      copy.p.put(e.getKey(), new StatePolicy(e.getKey(), e.getValue().getPolicy().clone()));
+    return copy;
+  }
+  
+  /**
+   * @param spare A policy that is no longer used, or null
+   * @return A copy of this policy as copy() makes, which may reuse the storage
+   *         of the spare policy
+   */
+  public Policy copy(Policy spare) {
+    if(spare != null) spare.release();
+    return copy();
+  }
+  
+  /**
+   * Frees what the policy holds outside the heap. The policy is not used
+   * afterwards.
+   */
+  public void release() {}
+  
   public int numStates() { return p.size(); }
   
+  /**
+   * @return The states the policy is defined for
+   */
+  public Iterable<PackedState> states() { return p.keySet(); }
+  
   public void outputPolicy() {
     System.out.println(p);
   }
   
   public DeterministicPolicy determinise() {
     DeterministicPolicy det = new DeterministicPolicy(this.numStates());
-    for(State s: p.keySet()){
-      // Find index of max choice
-      int maxIndex = -1;
-      double max = Double.MIN_VALUE;
-      StatePolicy l = getStatePolicy(s);
-      for(int i = 0; i < l.size(); i++){
-        if(l.get(i) < max) continue;
-        maxIndex = i;
-        max = l.get(i);
-      }
-      
-      // Use found max 
-      det.addDeterministicChoice(s, maxIndex);
-    }
+    for(PackedState s: states())
+      det.addDeterministicChoice(s, getStatePolicy(s).getBest(), getStatePolicy(s).size());
+    det.freeze();
     return det;
   }
   
@@ -0,0 +1,350 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package smcmdp.policy;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import smcmdp.*;
+
+/**
+ * A binary file format for policies, stochastic or deterministic, which is
+ * read through a mapping of the file instead of being deserialised.
+ * 
+ * After a header, the file has an open-addressing table of state ids with
+ * linear probing, the words of each state, and either the choice and number
+ * of choices of each state, or the offset of its choices followed by their
+ * probabilities and running sums. All numbers are in the byte order of the
+ * machine writing the file, which is recorded in the header.
+ * 
+ * States are only meaningful to the StateCodec that packed them, so the
+ * header records the number of variables and the layout of the codec, and
+ * a file is not loaded with a codec of another layout, e.g. of an edited
+ * model.
+ */
+public class PolicyFile {
+  public static final long MAGIC = 0x534d43504f4c4943L; // "SMCPOLIC"
+  public static final int VERSION = 2;
+  public static final int HEADER_SIZE = 64;
+  
+  public static final int STOCHASTIC = 0, DETERMINISTIC = 1;
+  
+  /**
+   * Writes a policy into a file. A deterministic policy is written with its
+   * deterministic choices only, any other policy with the distributions of
+   * all its states.
+   * @param codec The codec that packed the states
+   */
+  public static void write(Policy policy, File file, StateCodec codec) throws IOException {
+    write(policy, file, -1, codec);
+  }
+  
+  /**
+   * Same, recording the number of blocks the policy was learned for, or -1.
+   */
+  public static void write(Policy policy, File file, int blocks, StateCodec codec) throws IOException {
+    int kind = (policy instanceof DeterministicPolicy) ? DETERMINISTIC : STOCHASTIC;
+    
+    // Collect the states first, for the sizes of the sections
+    List<PackedState> states = new ArrayList<PackedState>();
+    if(kind == DETERMINISTIC) states.addAll(((DeterministicPolicy) policy).getDeterministicStates());
+    else for(PackedState s: policy.states()) states.add(s);
+    
+    int numStates = states.size();
+    int numWords = codec.getNumWords();
+    int tableBits = 1;
+    while((1 << tableBits) < 2 * numStates) tableBits++;
+    long numChoices = 0;
+    if(kind == STOCHASTIC)
+      for(PackedState s: states) numChoices += policy.getStatePolicy(s).size();
+    
+    long[] offsets = sections(kind, numStates, numWords, tableBits, numChoices);
+    RandomAccessFile f = new RandomAccessFile(file, "rw");
+    try {
+      f.setLength(0);
+      FileChannel c = f.getChannel();
+      ByteBuffer header = map(c, FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+      header.order(ByteOrder.BIG_ENDIAN).put(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? (byte) 0 : (byte) 1);
+      header.order(ByteOrder.nativeOrder());
+      header.putLong(8, MAGIC);
+      header.putInt(16, VERSION);
+      header.putInt(20, kind);
+      header.putInt(24, numWords);
+      header.putInt(28, numStates);
+      header.putInt(32, tableBits);
+      header.putInt(36, codec.getNumVars());
+      header.putLong(40, numChoices);
+      header.putInt(48, blocks);
+      header.putLong(56, codec.getLayout());
+      
+      IntBuffer table = map(c, FileChannel.MapMode.READ_WRITE, offsets[0], offsets[1]).asIntBuffer();
+      LongBuffer keys = map(c, FileChannel.MapMode.READ_WRITE, offsets[1], offsets[2]).asLongBuffer();
+      int mask = (1 << tableBits) - 1;
+      for(int id = 0; id < numStates; id++) {
+        PackedState s = states.get(id);
+        if(s.numWords() != numWords)
+          throw new IOException("State " + s + " was not packed by the codec");
+        for(int i = 0; i < numWords; i++)
+          keys.put(s.getWord(i));
+        int bucket = s.hashCode() & mask;
+        while(table.get(bucket) != 0) bucket = (bucket + 1) & mask;
+        table.put(bucket, id + 1);
+      }
+      
+      if(kind == DETERMINISTIC) {
+        DeterministicPolicy det = (DeterministicPolicy) policy;
+        IntBuffer choices = map(c, FileChannel.MapMode.READ_WRITE, offsets[2], offsets[3]).asIntBuffer();
+        for(PackedState s: states) {
+          choices.put(det.getDeterministicChoice(s));
+          choices.put(det.getNumChoices(s));
+        }
+      } else {
+        IntBuffer start = map(c, FileChannel.MapMode.READ_WRITE, offsets[2], offsets[3]).asIntBuffer();
+        DoubleBuffer probabilities = map(c, FileChannel.MapMode.READ_WRITE, offsets[3], offsets[4]).asDoubleBuffer();
+        DoubleBuffer cumulative = map(c, FileChannel.MapMode.READ_WRITE, offsets[4], offsets[5]).asDoubleBuffer();
+        int next = 0;
+        for(PackedState s: states) {
+          start.put(next);
+          double[] p = policy.getStatePolicy(s).getPolicy();
+          double d = 0.0;
+          for(int i = 0; i < p.length; i++) {
+            d += p[i];                // Summed in the same order as the linear scan
+            probabilities.put(p[i]);
+            cumulative.put(d);
+          }
+          next += p.length;
+        }
+        start.put(next);
+      }
+      c.force(false);
+    } finally {
+      f.close();
+    }
+  }
+  
+  /**
+   * @param codec The codec that packs the states of the model at hand
+   * @return The policy in the file, read through a mapping of it
+   * @throws IOException Also if the file was written for states of another layout
+   */
+  public static Stored load(File file, StateCodec codec) throws IOException {
+    RandomAccessFile f = new RandomAccessFile(file, "r");
+    try {
+      FileChannel c = f.getChannel();
+      if(f.length() < HEADER_SIZE)
+        throw new IOException(file + " is not a policy file");
+      ByteBuffer header = map(c, FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      ByteOrder order = (header.get(0) == 0) ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+      header.order(order);
+      if(header.getLong(8) != MAGIC || header.getInt(16) != VERSION)
+        throw new IOException(file + " is not a policy file of version " + VERSION);
+      
+      int kind = header.getInt(20), numWords = header.getInt(24), numStates = header.getInt(28), tableBits = header.getInt(32);
+      if(header.getInt(36) != codec.getNumVars() || header.getLong(56) != codec.getLayout() || numWords != codec.getNumWords())
+        throw new IOException(file + " is a policy for states of another model");
+      long numChoices = header.getLong(40);
+      long[] offsets = sections(kind, numStates, numWords, tableBits, numChoices);
+      if(f.length() != offsets[offsets.length - 1])
+        throw new IOException(file + " is truncated");
+      
+      Stored p = new Stored(kind, numWords, numStates, tableBits);
+      p.blocks = header.getInt(48);
+      p.table = map(c, FileChannel.MapMode.READ_ONLY, offsets[0], offsets[1]).order(order).asIntBuffer();
+      p.keys  = map(c, FileChannel.MapMode.READ_ONLY, offsets[1], offsets[2]).order(order).asLongBuffer();
+      if(kind == DETERMINISTIC)
+        p.choices = map(c, FileChannel.MapMode.READ_ONLY, offsets[2], offsets[3]).order(order).asIntBuffer();
+      else {
+        p.start         = map(c, FileChannel.MapMode.READ_ONLY, offsets[2], offsets[3]).order(order).asIntBuffer();
+        p.probabilities = map(c, FileChannel.MapMode.READ_ONLY, offsets[3], offsets[4]).order(order).asDoubleBuffer();
+        p.cumulative    = map(c, FileChannel.MapMode.READ_ONLY, offsets[4], offsets[5]).order(order).asDoubleBuffer();
+      }
+      return p;
+    } finally {
+      f.close(); // The mappings stay valid
+    }
+  }
+  
+  /**
+   * @return The offsets at which sections start, followed by the file size
+   */
+  protected static long[] sections(int kind, int numStates, int numWords, int tableBits, long numChoices) throws IOException {
+    long[] offsets = new long[(kind == DETERMINISTIC) ? 4 : 6];
+    offsets[0] = HEADER_SIZE;
+    offsets[1] = offsets[0] + 4L * (1 << tableBits);             // table
+    offsets[2] = offsets[1] + 8L * numStates * numWords;         // keys
+    if(kind == DETERMINISTIC)
+      offsets[3] = offsets[2] + 8L * numStates;                  // choices and numbers of choices
+    else {
+      if(numChoices > Integer.MAX_VALUE)
+        throw new IOException("Too many choices for a policy file");
+      offsets[3] = offsets[2] + align(4L * (numStates + 1));     // start
+      offsets[4] = offsets[3] + 8L * numChoices;                 // probabilities
+      offsets[5] = offsets[4] + 8L * numChoices;                 // cumulative
+    }
+    for(int i = 1; i < offsets.length; i++)
+      if(offsets[i] - offsets[i - 1] > Integer.MAX_VALUE)
+        throw new IOException("Policy too large for a policy file");
+    return offsets;
+  }
+  
+  protected static long align(long n) { return (n + 7) & ~7L; }
+  
+  protected static ByteBuffer map(FileChannel c, FileChannel.MapMode mode, long from, long to) throws IOException {
+    return c.map(mode, from, to - from).order(ByteOrder.nativeOrder());
+  }
+  
+  /**
+   * A policy read from a file. Its stored states cannot be updated, and
+   * states that are not stored get a uniform distribution as in any policy.
+   */
+  public static class Stored extends Policy {
+    protected int kind, numWords, numStates, mask;
+    protected int blocks;
+    protected IntBuffer table, choices, start;
+    protected LongBuffer keys;
+    protected DoubleBuffer probabilities, cumulative;
+    
+    protected Stored(int kind, int numWords, int numStates, int tableBits) {
+      super(1000);
+      this.kind = kind;
+      this.numWords = numWords;
+      this.numStates = numStates;
+      this.mask = (1 << tableBits) - 1;
+    }
+    
+    public boolean isDeterministic() { return kind == DETERMINISTIC; }
+    
+    /**
+     * @return The number of blocks the policy was learned for, or -1 if unknown
+     */
+    public int getBlocks() { return blocks; }
+    
+    /**
+     * @return The id of the state in the file, or -1 if it is not stored
+     */
+    protected int find(PackedState state) {
+      if(state.numWords() != numWords)
+        return -1;
+      for(int bucket = state.hashCode() & mask; ; bucket = (bucket + 1) & mask) {
+        int id = table.get(bucket) - 1;
+        if(id < 0)
+          return -1;
+        int i = 0;
+        while(i < numWords && keys.get(numWords * id + i) == state.getWord(i)) i++;
+        if(i == numWords)
+          return id;
+      }
+    }
+    
+    public StatePolicy getStatePolicy(PackedState state) {
+      int id = find(state);
+      if(id < 0)
+        return super.getStatePolicy(state);
+      return new StatePolicy(state, getPolicy(id));
+    }
+    
+    protected double[] getPolicy(int id) {
+      if(kind == STOCHASTIC) {
+        double[] p = new double[start.get(id + 1) - start.get(id)];
+        for(int i = 0; i < p.length; i++)
+          p[i] = probabilities.get(start.get(id) + i);
+        return p;
+      }
+      double[] p = new double[choices.get(2 * id + 1)];
+      p[choices.get(2 * id)] = 1.0;
+      return p;
+    }
+    
+    public boolean defined(PackedState state) {
+      return find(state) >= 0 || super.defined(state);
+    }
+    
+    public boolean initialise(PackedState state, int numChoices) {
+      return find(state) < 0 && super.initialise(state, numChoices);
+    }
+    
+    // Same choice as the linear scan in SimulatorEngine.java, see StatePolicy
+    public int getIndexByProbabilitySum(PackedState state, double x) {
+      int id = find(state);
+      if(id < 0)
+        return super.getIndexByProbabilitySum(state, x);
+      return getIndexByProbabilitySum(id, x);
+    }
+    
+    public int sample(PackedState state, int numChoices, double x) {
+      int id = find(state);
+      if(id < 0)
+        return super.sample(state, numChoices, x);
+      return getIndexByProbabilitySum(id, x);
+    }
+    
+    protected int getIndexByProbabilitySum(int id, double x) {
+      if(kind == DETERMINISTIC)
+        return choices.get(2 * id);
+      
+      int lo = start.get(id), hi = start.get(id + 1) - 1;
+      int first = lo;
+      while(lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if(x >= cumulative.get(mid)) lo = mid + 1;
+        else                         hi = mid;
+      }
+      return lo - first;
+    }
+    
+    public int numStates() { return numStates + super.numStates(); }
+    
+    public Iterable<PackedState> states() {
+      List<PackedState> states = new ArrayList<PackedState>(numStates + super.numStates());
+      for(int id = 0; id < numStates; id++) {
+        long[] more = (numWords == 1) ? null : new long[numWords - 1];
+        for(int i = 1; i < numWords; i++)
+          more[i - 1] = keys.get(numWords * id + i);
+        states.add(new PackedState(keys.get(numWords * id), more));
+      }
+      for(PackedState s: super.states())
+        states.add(s);
+      return states;
+    }
+    
+    public String toString() {
+      StringBuilder s = new StringBuilder("{");
+      for(PackedState state: states()) {
+        if(s.length() > 1) s.append(", ");
+        s.append(state).append("=").append(Arrays.toString(getStatePolicy(state).getPolicy()));
+      }
+      return s.append("}").toString();
+    }
+  }
+}
@@ -31,36 +31,113 @@
 
 package smcmdp.policy;
 
-import java.util.*;
-
-import parser.*;
+import smcmdp.*;
 
 public class StatePolicy {
-  protected State state;
-  protected List<Double> policy;
+  protected PackedState state;
+  protected double[] policy;
+  protected volatile double[] cumulative; // Running sums of policy, rebuilt on demand after it changes
+  protected int best;                     // Index of the most likely choice, or UNKNOWN
+  
+  protected static final int UNKNOWN = -2;
   
-  public StatePolicy(State state, int n) {
+  public StatePolicy(PackedState state, int n) {
     this.state = state;
-    this.policy = new ArrayList<Double>(n);
+    this.policy = new double[n];
     for(int i = 0; i < n; i++)
-      policy.add(1.0/n);
+      policy[i] = 1.0/n;
+    this.best = n - 1;
   }
   
-  public StatePolicy(State state, List<Double> policy) {
+  public StatePolicy(PackedState state, double[] policy) {
     this.state = state;
     this.policy = policy;
+    this.best = UNKNOWN;
   }
   
-  public void setState(List<Double> policy) { this.policy = policy; }
+  public void setState(double[] policy) {
+    this.policy = policy;
+    this.cumulative = null;
+    this.best = UNKNOWN;
+  }
   
-  public double get(int index) { return policy.get(index); }
+  public double get(int index) { return policy[index]; }
   
-  public State getState() { return state; }
-  public List<Double> getPolicy() { return policy; }
+  public PackedState getState() { return state; }
+  public double[] getPolicy() { return policy; }
   
-  public int size() { return policy.size(); }
+  public int size() { return policy.length; }
 
   public void set(int i, double updatedProbability) {
-    policy.set(i, updatedProbability);
+    double old = policy[i];
+    policy[i] = updatedProbability;
+    cumulative = null;
+    track(i, old, updatedProbability);
+  }
+  
+  /**
+   * Keeps track of the most likely choice after choice i changed from old to
+   * updated, unless the best one dropped, or it is not known.
+   */
+  protected void track(int i, double old, double updated) {
+    int b = loadBest();
+    if(b < 0) return;
+    if(i == b) {
+      if(updated < old) storeBest(UNKNOWN);
+    } else if(updated > get(b) || (updated == get(b) && i > b)) {
+      storeBest(i);
+    }
+  }
+  
+  // Where the most likely choice is kept, which views of other storage override
+  protected int loadBest() { return best; }
+  protected void storeBest(int b) { best = b; }
+  
+  /**
+   * @return The index of the most likely choice, the last one of several
+   * equally likely ones, or -1 if all probabilities are zero
+   */
+  public int getBest() {
+    int b = loadBest();
+    if(b != UNKNOWN) return b;
+    
+    int maxIndex = -1;
+    double max = Double.MIN_VALUE;
+    for(int i = 0; i < size(); i++){
+      if(get(i) < max) continue;
+      maxIndex = i;
+      max = get(i);
+    }
+    if(maxIndex >= 0) storeBest(maxIndex); // All zero is not kept, the next set may change it
+    return maxIndex;
+  }
+  
+  /**
+   * Picks the choice whose probability interval contains x, i.e. the first one
+   * whose running sum of probabilities exceeds x, or the last one. This is the
+   * choice a linear scan as in SimulatorEngine would pick, found by binary search.
+   * 
+   * The running sums are rebuilt here after the policy was updated. Threads
+   * that race to do so compute the same array, so either copy may win.
+   */
+  public int getIndexByProbabilitySum(double x) {
+    double[] c = cumulative;
+    if(c == null) {
+      c = new double[policy.length];
+      double d = 0.0;
+      for(int i = 0; i < policy.length; i++) {
+        d += policy[i];               // Summed in the same order as the linear scan
+        c[i] = d;
+      }
+      cumulative = c;
+    }
+    
+    int lo = 0, hi = c.length - 1;
+    while(lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if(x >= c[mid]) lo = mid + 1;
+      else            hi = mid;
+    }
+    return lo;
   }
 }
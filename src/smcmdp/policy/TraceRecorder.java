@@ -31,22 +31,66 @@
 
 package smcmdp.policy;
 
-import parser.*;
+import java.util.*;
 
-public class Step {
-  public State state;
-  public int choiceTaken;  // Which choice was chosen according to policy
-  public int choiceSample; // Decision taken given the options of that choice
-  public int numChoices; // Number of possible choices at this state
-  
-  public Step(State state, int choiceTaken, int choiceSample, int numChoices){
-    this.state = state;
-    this.choiceTaken = choiceTaken; 
-    this.choiceSample = choiceSample;
-    this.numChoices = numChoices;
-    }
+import smcmdp.*;
+
+/**
+ * Records the steps of a trace: for each transition, the state it was taken from,
+ * which choice was chosen according to policy, which decision was taken given the
+ * options of that choice, and the number of possible choices at the state.
+ * 
+ * Each thread keeps one recorder and clears it for every new trace. The arrays
+ * only grow, so once they fit the longest trace nothing is allocated anymore.
+ */
+public class TraceRecorder {
+  protected PackedState[] states;
+  protected int[] choicesTaken;
+  protected int[] choicesSampled;
+  protected int[] numChoices;
+  protected int size;
+  
+  public TraceRecorder() { this(64); }
+  
+  public TraceRecorder(int capacity) {
+    states = new PackedState[capacity];
+    choicesTaken = new int[capacity];
+    choicesSampled = new int[capacity];
+    numChoices = new int[capacity];
+    size = 0;
+  }
+  
+  public void add(PackedState state, int choiceTaken, int choiceSample, int numChoices) {
+    if(size == states.length)
+      grow();
+    this.states[size] = state;
+    this.choicesTaken[size] = choiceTaken;
+    this.choicesSampled[size] = choiceSample;
+    this.numChoices[size] = numChoices;
+    size++;
+  }
+  
+  protected void grow() {
+    int capacity = 2 * states.length;
+    states = Arrays.copyOf(states, capacity);
+    choicesTaken = Arrays.copyOf(choicesTaken, capacity);
+    choicesSampled = Arrays.copyOf(choicesSampled, capacity);
+    numChoices = Arrays.copyOf(numChoices, capacity);
+  }
+  
+  public void clear() { size = 0; }
+  
+  public int size() { return size; }
+  
+  public PackedState getState(int step) { return states[step]; }
+  public int getChoiceTaken(int step)    { return choicesTaken[step]; }
+  public int getChoiceSample(int step)   { return choicesSampled[step]; }
+  public int getNumChoices(int step)     { return numChoices[step]; }
   
   public String toString(){
-    return "Step("+state+ ", " + choiceTaken + ", " + choiceSample + ")";
+    StringBuilder s = new StringBuilder("[");
+    for(int i = 0; i < size; i++)
+      s.append((i > 0) ? ", " : "").append("Step(" + states[i] + ", " + choicesTaken[i] + ", " + choicesSampled[i] + ")");
+    return s.append("]").toString();
   }
-}
\ No newline at end of file
+}
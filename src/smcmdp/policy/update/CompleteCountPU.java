@@ -33,7 +33,6 @@ package smcmdp.policy.update;
 
 import java.util.*;
 
-import parser.*;
 import smcmdp.*;
 import smcmdp.policy.*;
 import smcmdp.reward.*;
@@ -45,29 +44,31 @@ public class CompleteCountPU implements PolicyUpdate {
     double H = Conf.HISTORY;
     
     // Go through all states for which we have rewards
-    for(Map.Entry<State, StateReward> e: rewards.getRewards().entrySet()){
-      State state = e.getKey();                  // The state
-      StateReward localRewards = e.getValue();   // Rewards each choice of the state
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++){
+      PackedState state = rewards.getState(id);  // The state
+      if(state == null) // Unused id
+        continue;
+      int numChoices = rewards.getNumChoices(id); // Rewards each choice of the state
       StatePolicy localPolicy = p.getStatePolicy(state);   // Policy for this state, i.e. probabilities for each choice
       
-      assert(localPolicy.size() == localRewards.size());
+      assert(localPolicy.size() == numChoices);
       
       // Compute condensed rewards, i.e. nSats
       // And their minimum
-      int min = Integer.MAX_VALUE;
-      List<Integer> localRewardsCondensed = new LinkedList<Integer>();
-      for(ChoiceReward r: localRewards) {
-        int localRewardCondensed = r.getSat() - r.getNSat();
+      long min = Long.MAX_VALUE;
+      List<Long> localRewardsCondensed = new LinkedList<Long>();
+      for(int c = 0; c < numChoices; c++) {
+        long localRewardCondensed = rewards.getSat(id, c) - rewards.getNSat(id, c);
         localRewardsCondensed.add(localRewardCondensed);
         min = (localRewardCondensed < min) ? localRewardCondensed : min;
       }
       
       // Add pseudo-counts so that the minimum reward is 1
       // Count the total number of counts
-      int totalCount = 0;
-      List<Integer> localRewardsFinal = new LinkedList<Integer>();
-      for(Integer r: localRewardsCondensed) {
-        int localRewardFinal = (min < 0) ? r - min + 1 : r;
+      long totalCount = 0;
+      List<Long> localRewardsFinal = new LinkedList<Long>();
+      for(Long r: localRewardsCondensed) {
+        long localRewardFinal = (min < 0) ? r - min + 1 : r;
         localRewardsFinal.add(localRewardFinal);
         totalCount = totalCount + localRewardFinal;
       }
@@ -76,7 +77,7 @@ public class CompleteCountPU implements PolicyUpdate {
       if(totalCount == 0)
         continue;
       int i = 0;
-      for(Integer r: localRewardsFinal){
+      for(Long r: localRewardsFinal){
         double currentProbability = localPolicy.get(i);
         double updatedProbability = H*currentProbability + (1-H)*(1.0*r/totalCount);
         localPolicy.set(i, updatedProbability);
@@ -33,7 +33,6 @@ package smcmdp.policy.update;
 
 import java.util.*;
 
-import parser.*;
 import smcmdp.*;
 import smcmdp.policy.*;
 import smcmdp.reward.*;
@@ -45,18 +44,20 @@ public class EpsilonCountPU implements PolicyUpdate {
     double H = Conf.HISTORY;
     
     // Go through all states for which we have rewards
-    for(Map.Entry<State, StateReward> e: rewards.getRewards().entrySet()){
-      State state = e.getKey();                  // The state
-      StateReward localRewards = e.getValue();   // Rewards each choice of the state
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++){
+      PackedState state = rewards.getState(id);  // The state
+      if(state == null) // Unused id
+        continue;
+      int numChoices = rewards.getNumChoices(id); // Rewards each choice of the state
       StatePolicy localPolicy = p.getStatePolicy(state);   // Policy for this state, i.e. probabilities for each choice
       
-      assert(localPolicy.size() == localRewards.size());
+      assert(localPolicy.size() == numChoices);
       
-      int positiveTotal = 0;
+      long positiveTotal = 0;
       int numPositive = 0;
-      List<Integer> localRewardsCondensed = new LinkedList<Integer>();
-      for(ChoiceReward r: localRewards) {
-        int localRewardCondensed = r.getSat() - r.getNSat();
+      List<Long> localRewardsCondensed = new LinkedList<Long>();
+      for(int c = 0; c < numChoices; c++) {
+        long localRewardCondensed = rewards.getSat(id, c) - rewards.getNSat(id, c);
         if(localRewardCondensed == 0)
           localRewardCondensed++;
         
@@ -70,7 +71,7 @@ public class EpsilonCountPU implements PolicyUpdate {
       //int numNegative = localPolicy.size() - numPositive;
       
       int i = 0;
-      for(Integer r: localRewardsCondensed){
+      for(Long r: localRewardsCondensed){
         double currentProbability = localPolicy.get(i);
         double updatedProbability;
         if(localRewardsCondensed.get(i) > 0)
@@ -35,7 +35,6 @@ import java.util.*;
 import smcmdp.*;
 import smcmdp.policy.*;
 import smcmdp.reward.*;
-import parser.*;
 
 public class EpsilonPU implements PolicyUpdate {
 
@@ -45,21 +44,22 @@ public class EpsilonPU implements PolicyUpdate {
     double epsilon = Conf.EPSILON;
     
     // Go through all states for which we have rewards
-    for(Map.Entry<State, StateReward> e: rewards.getRewards().entrySet()){
-      State state = e.getKey();                  // The state
-      StateReward localRewards = e.getValue();  // Rewards each choice of the state
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++){
+      PackedState state = rewards.getState(id);  // The state
+      if(state == null) // Unused id
+        continue;
+      int numChoices = rewards.getNumChoices(id); // Rewards each choice of the state
       StatePolicy localPolicy = p.getStatePolicy(state);   // Policy for this state, i.e. probabilities for each choice
       
-      assert(localPolicy.size() == localRewards.size());
+      assert(localPolicy.size() == numChoices);
       
       // Compute condensed rewards, i.e. nSat / (nSat + nNotSat)
       double max = Double.NEGATIVE_INFINITY;
       int maxIndex = -1;
       int policySize = localPolicy.size();
       for(int i = 0; i < policySize; i++) {
-        ChoiceReward r = localRewards.get(i);
-        int sat = r.getSat();
-        int nsat = r.getNSat();
+        long sat = rewards.getSat(id, i);
+        long nsat = rewards.getNSat(id, i);
         // If we never tried this action-state pair, we simply use the previous policy's value
         double successProb = (sat + nsat > 0) ? 1.0 * sat / (sat + nsat) : localPolicy.get(i);
         localPolicy.set(i, epsilon/(policySize-1));
@@ -0,0 +1,100 @@
+/***********************************************************************************************
+ * Copyright (C) 2011, 2012  D. Henriques; J. G. Martins; P. Zuliani; A. Platzer; E. M. Clarke.  All rights reserved.
+ * By using this software the USER indicates that he or she has read, understood and will comply
+ * with the following:
+ *
+ * 1. The USER is hereby granted non-exclusive permission to use, copy and/or
+ * modify this software for internal, non-commercial, research purposes only. Any
+ * distribution, including commercial sale or license, of this software, copies of
+ * the software, its associated documentation and/or modifications of either is
+ * strictly prohibited without the prior consent of the authors. Title to copyright
+ * to this software and its associated documentation shall at all times remain with
+ * the authors. Appropriated copyright notice shall be placed on all software
+ * copies, and a complete copy of this notice shall be included in all copies of
+ * the associated documentation. No right is granted to use in advertising,
+ * publicity or otherwise any trademark, service mark, or the name of the authors.
+ *
+ * 2. This software and any associated documentation is provided "as is".
+ *
+ * THE AUTHORS MAKE NO REPRESENTATIONS OR WARRANTIES, EXPRESSED OR IMPLIED,
+ * INCLUDING THOSE OF MERCHANTABILITY OR FITNESS FOR A PARTICULAR PURPOSE, OR THAT
+ * USE OF THE SOFTWARE, MODIFICATIONS, OR ASSOCIATED DOCUMENTATION WILL NOT
+ * INFRINGE ANY PATENTS, COPYRIGHTS, TRADEMARKS OR OTHER INTELLECTUAL PROPERTY
+ * RIGHTS OF A THIRD PARTY.
+ *
+ * The authors shall not be liable under any circumstances for any direct,
+ * indirect, special, incidental, or consequential damages with respect to any
+ * claim by USER or any third party on account of or arising from the use, or
+ * inability to use, this software or its associated documentation, even if the
+ * authors have been advised of the possibility of those damages.
+ * ***********************************************************************************************/
+
+package smcmdp.policy.update;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import smcmdp.policy.*;
+import smcmdp.reward.*;
+
+/**
+ * Runs another policy update on parts of the rewards in parallel. This is
+ * possible for all updates that only change the policy of the states they
+ * have rewards for, which is the case of all updates here.
+ * 
+ * Rewards for few states are updated serially, since splitting them does
+ * not pay off.
+ */
+public class ParallelPU implements PolicyUpdate {
+  public static final int MIN_STATES = 10000;     // Fewer states are updated serially
+  public static final int PARTS_PER_THREAD = 4;   // Parts are not all equally costly to update
+  
+  protected PolicyUpdate update;
+  protected int numThreads;
+  protected ExecutorService pool;
+  
+  public ParallelPU(PolicyUpdate update, int numThreads) {
+    this.update = update;
+    this.numThreads = numThreads;
+  }
+  
+  @Override
+  public void update(final Policy p, Rewards rewards) {
+    if(numThreads < 2 || rewards.numStates() < MIN_STATES) {
+      update.update(p, rewards);
+      return;
+    }
+    
+    List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+    for(final Rewards part: rewards.partition(numThreads * PARTS_PER_THREAD))
+      tasks.add(new Callable<Object>() {
+        public Object call() {
+          update.update(p, part);
+          return null;
+        }
+      });
+    
+    try {
+      for(Future<Object> f: getPool().invokeAll(tasks))
+        f.get();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch(ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+  
+  protected synchronized ExecutorService getPool() {
+    if(pool == null)
+      pool = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread t = new Thread(r, "policy-update");
+          t.setDaemon(true); // Idle between blocks, and must not keep the program alive
+          return t;
+        }
+      });
+    return pool;
+  }
+  
+  public PolicyUpdate getUpdate() { return update; }
+}
@@ -36,7 +36,6 @@ import java.util.*;
 import smcmdp.*;
 import smcmdp.policy.*;
 import smcmdp.reward.*;
-import parser.*;
 
 public class SuccessPU implements PolicyUpdate {
 
@@ -45,19 +44,20 @@ public class SuccessPU implements PolicyUpdate {
     double H = Conf.HISTORY;
     
     // Go through all states for which we have rewards
-    for(Map.Entry<State, StateReward> e: rewards.getRewards().entrySet()){
-      State state = e.getKey();                  // The state
-      StateReward localRewards = e.getValue();   // Rewards each choice of the state
+    for(int id = rewards.getFirstId(); id < rewards.getEndId(); id++){
+      PackedState state = rewards.getState(id);  // The state
+      if(state == null) // Unused id
+        continue;
+      int numChoices = rewards.getNumChoices(id); // Rewards each choice of the state
       StatePolicy localPolicy = p.getStatePolicy(state);   // Policy for this state, i.e. probabilities for each choice
       
-      assert(localPolicy.size() == localRewards.size());
+      assert(localPolicy.size() == numChoices);
       
       // Compute condensed rewards, i.e. nSat / (nSat + nNotSat)
       List<Double> successProbs = new LinkedList<Double>();
-      for(int i = 0; i < localRewards.size(); i++) {
-        ChoiceReward r =  localRewards.get(i);
-        int sat = r.getSat();
-        int nsat = r.getNSat();
+      for(int i = 0; i < numChoices; i++) {
+        long sat = rewards.getSat(id, i);
+        long nsat = rewards.getNSat(id, i);
         // Make sure we passed at least once.
         double successProb = (sat + nsat > 0) ? 1.0 * sat / (sat + nsat) : localPolicy.get(i);
         successProbs.add(successProb);
@@ -33,9 +33,8 @@ package smcmdp.reward;
 
 import java.util.*;
 import java.util.concurrent.*;
-//import java.util.concurrent.locks.*;
+import java.util.concurrent.atomic.*;
 
-import parser.*;
 import smcmdp.*;
 import smcmdp.policy.*;
 
@@ -45,32 +44,195 @@ import smcmdp.policy.*;
  * from those states we assign two numbers: the number of traces
  * that passed through and satisfied the property and the number
  * of traces that passed through but did not satisfy it.
+ * 
+ * Each state gets a dense id the first time it is rewarded, and the
+ * counters of its choices occupy consecutive slots of flat arrays of
+ * longs, starting at the offset of the state. The arrays are split
+ * into pages that are allocated as they are needed, so that they never
+ * have to be copied while workers add rewards. The tables of pages start
+ * out sized for the expected number of states and double when they are
+ * full, since every thread may have rewards of its own. Policy updates go through
+ * the ids from getFirstId() to getEndId(), skipping those without a state.
+ * 
+ * States keep their id and slots across blocks. Each id carries the epoch
+ * in which it was last rewarded, and reset() just starts a new epoch: the
+ * counters of a state are zeroed when it is first rewarded again, and until
+ * then the state counts as not having rewards. Once most ids belong to states
+ * that were not rewarded in the epoch that ends, reset() forgets those states
+ * and packs the others into the lowest ids and slots, so that memory and the
+ * ranges of ids that updates go through stay in proportion to the states
+ * rewarded per block.
  */
 public class Rewards {
-  private ConcurrentHashMap<State, StateReward> r;
+  protected static final int PAGE_BITS = 16;
+  protected static final int PAGE_SIZE = 1 << PAGE_BITS;
+  protected static final int PAGE_MASK = PAGE_SIZE - 1;
+  protected static final int MAX_PAGES = 1 << (31 - PAGE_BITS);
+  protected static final int CLAIMED = -1;   // Stamp of a state whose counters are being zeroed
+  
+  protected ConcurrentHashMap<PackedState, Integer> ids;
+  protected AtomicInteger nextId, nextSlot;
+  protected AtomicInteger live;    // The number of states rewarded in this epoch
+  protected volatile int epoch;
+  
+  protected Pages pages;           // Shared with views, which see the tables grow
+  
+  // The range of ids of a part, where an end of -1 means all ids handed out so far
+  protected int firstId = 0, endId = -1;
   
   public Rewards() { this(1000); }
   
+  /**
+   * @param n The expected number of states
+   */
   public Rewards(int n) {
-    r = new ConcurrentHashMap<State, StateReward>(n);
+    ids = new ConcurrentHashMap<PackedState, Integer>(n);
+    nextId = new AtomicInteger();
+    nextSlot = new AtomicInteger();
+    live = new AtomicInteger();
+    pages = new Pages(Math.min(MAX_PAGES, (n >>> PAGE_BITS) + 1));
+  }
+  
+  /**
+   * A view of the ids of other rewards from first (inclusive) to end (exclusive),
+   * valid until the other rewards are reset.
+   */
+  protected Rewards(Rewards other, int first, int end) {
+    ids = other.ids;
+    nextId = other.nextId;
+    nextSlot = other.nextSlot;
+    live = other.live;
+    epoch = other.epoch;
+    pages = other.pages;
+    firstId = first;
+    endId = end;
   }
 
   /**
    * @param state A state
    * @return Whether the state already has rewards or not
    */
-  public boolean initialised(State state) {
-    return r.containsKey(state);
+  public boolean initialised(PackedState state) {
+    Integer id = ids.get(state);
+    return id != null && isLive(id);
   }
 
   /**
-   * Initialises the data-structures to maintain information about this state
+   * Initialises the data-structures to maintain information about this state,
+   * unless it has been initialised before.
    * @param state A state
    * @param numChoices The number of possible choices from this state
-   * @return Whether initialisation was successful, i.e. it was not initialised before
+   * @return The id of the state
+   */
+  public int initialise(PackedState state, int numChoices) {
+    Integer id = ids.get(state);
+    if(id != null) { // Most of the time
+      touch(id);
+      return id;
+    }
+    
+    int newId = nextId.getAndIncrement();
+    int offset = nextSlot.getAndAdd(numChoices);
+    if(newId < 0 || offset < 0 || offset + numChoices < 0)
+      throw new IllegalStateException("Too many rewarded states");
+    
+    // Filled in before the id is published, so whoever gets the id sees them
+    Pages t = pages;
+    if(!t.hasIdPage(newId >>> PAGE_BITS))
+      t.addIdPage(newId >>> PAGE_BITS);
+    for(int slot = offset; slot < offset + numChoices; slot = (slot | PAGE_MASK) + 1)
+      if(!t.hasSlotPage(slot >>> PAGE_BITS))
+        t.addSlotPage(slot >>> PAGE_BITS);
+    t.states.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = state;
+    t.offsets.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = offset;
+    t.numChoices.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = numChoices;
+    t.stamps.get(newId >>> PAGE_BITS).set(newId & PAGE_MASK, epoch);
+    
+    id = ids.putIfAbsent(state, newId);
+    if(id == null) {
+      live.incrementAndGet();
+      return newId;
+    }
+    // Somebody else was faster, leave a hole
+    t.states.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = null;
+    touch(id);
+    return id;
+  }
+  
+  /**
+   * Makes sure the state with the given id has rewards in this epoch, zeroing
+   * the counters it still has from an earlier one. Only one thread zeroes them,
+   * the others wait until it is done.
    */
-  public boolean initialise(State state, int numChoices) {
-    return r.putIfAbsent(state, new StateReward(state, numChoices)) == null;
+  protected void touch(int id) {
+    int e = epoch;
+    AtomicIntegerArray page = pages.stamps.get(id >>> PAGE_BITS);
+    int stamp;
+    while((stamp = page.get(id & PAGE_MASK)) != e) {
+      if(stamp == CLAIMED || !page.compareAndSet(id & PAGE_MASK, stamp, CLAIMED)) {
+        Thread.yield();
+        continue;
+      }
+      int offset = getOffset(id);
+      for(int slot = offset; slot < offset + getNumChoices(id); slot++) {
+        pages.sat.get(slot >>> PAGE_BITS).set(slot & PAGE_MASK, 0);
+        pages.nSat.get(slot >>> PAGE_BITS).set(slot & PAGE_MASK, 0);
+      }
+      live.incrementAndGet();
+      page.set(id & PAGE_MASK, e);
+    }
+  }
+  
+  protected boolean isLive(int id) { return pages.stamps.get(id >>> PAGE_BITS).get(id & PAGE_MASK) == epoch; }
+  
+  public void addSat(int id, int choice, long n) {
+    int slot = getOffset(id) + choice;
+    pages.sat.get(slot >>> PAGE_BITS).addAndGet(slot & PAGE_MASK, n);
+  }
+  
+  public void addNSat(int id, int choice, long n) {
+    int slot = getOffset(id) + choice;
+    pages.nSat.get(slot >>> PAGE_BITS).addAndGet(slot & PAGE_MASK, n);
+  }
+  
+  public long getSat(int id, int choice) {
+    int slot = getOffset(id) + choice;
+    return pages.sat.get(slot >>> PAGE_BITS).get(slot & PAGE_MASK);
+  }
+  
+  public long getNSat(int id, int choice) {
+    int slot = getOffset(id) + choice;
+    return pages.nSat.get(slot >>> PAGE_BITS).get(slot & PAGE_MASK);
+  }
+  
+  /**
+   * @return The state with the given id, or null if the id is not used or
+   * the state has no rewards in this epoch
+   */
+  public PackedState getState(int id) { return isLive(id) ? pages.states.get(id >>> PAGE_BITS)[id & PAGE_MASK] : null; }
+  public int getNumChoices(int id) { return pages.numChoices.get(id >>> PAGE_BITS)[id & PAGE_MASK]; }
+  protected int getOffset(int id) { return pages.offsets.get(id >>> PAGE_BITS)[id & PAGE_MASK]; }
+  
+  public int getFirstId() { return firstId; }
+  public int getEndId() { return endId < 0 ? nextId.get() : endId; }
+  
+  /**
+   * Adds other rewards to these, e.g. the rewards a thread gathered on its own.
+   * @param other Rewards that nobody else changes meanwhile
+   */
+  public void add(Rewards other) {
+    for(int i = other.getFirstId(); i < other.getEndId(); i++) {
+      PackedState state = other.getState(i);
+      if(state == null)
+        continue;
+      int n = other.getNumChoices(i);
+      int id = initialise(state, n);
+      for(int c = 0; c < n; c++) {
+        long s = other.getSat(i, c), ns = other.getNSat(i, c);
+        if(s != 0)  addSat(id, c, s);
+        if(ns != 0) addNSat(id, c, ns);
+      }
+    }
   }
   
   /**
@@ -78,20 +240,171 @@ public class Rewards {
    * along all states of the path positively or negatively depending
    * on whether the property was satisfied, up to the state at which
    * the property was finally satisfied (and no further).
-   * @param path A sequence of Steps, containing states
+   * @param path The recorded steps of the trace, containing states
    * @param sat Whether the formula was satisfied by this trace, and
    * when the formula was satisfied.
    */
-  public void updateRewards(List<Step> path, SatResult sat){
+  public void updateRewards(TraceRecorder path, SatResult sat){
     Conf.REWARD_UPDATE.update(this, path, sat);
   }
   
+  /**
+   * Forgets the rewards of all states by starting a new epoch, keeping the ids
+   * and slots of the states rewarded in the epoch that ends. Nobody may add
+   * rewards meanwhile.
+   */
   public void reset() {
-    r.clear();
+    if(nextId.get() - live.get() > live.get())
+      compact();
+    epoch = (epoch + 1) & Integer.MAX_VALUE; // Never CLAIMED
+    live.set(0);
+  }
+  
+  /**
+   * Forgets the states without rewards in this epoch, and gives the others
+   * the lowest ids and slots in the same order. Their counters are not moved,
+   * since they are zeroed when the states are rewarded again.
+   */
+  protected void compact() {
+    int end = nextId.get(), newId = 0, newSlot = 0;
+    for(int id = 0; id < end; id++) {
+      PackedState state = pages.states.get(id >>> PAGE_BITS)[id & PAGE_MASK];
+      if(state == null)        // A hole
+        continue;
+      if(!isLive(id)) {
+        ids.remove(state);
+        continue;
+      }
+      int n = getNumChoices(id);
+      // Ids and slots only move down, so nothing is overwritten before it is read
+      pages.states.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = state;
+      pages.offsets.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = newSlot;
+      pages.numChoices.get(newId >>> PAGE_BITS)[newId & PAGE_MASK] = n;
+      pages.stamps.get(newId >>> PAGE_BITS).set(newId & PAGE_MASK, epoch);
+      ids.put(state, newId);
+      newId++;
+      newSlot += n;
+    }
+    
+    // New states expect zero counters, as in new pages
+    for(int slot = newSlot, endSlot = nextSlot.get(); slot < endSlot && (slot & PAGE_MASK) != 0; slot++) {
+      pages.sat.get(slot >>> PAGE_BITS).set(slot & PAGE_MASK, 0);
+      pages.nSat.get(slot >>> PAGE_BITS).set(slot & PAGE_MASK, 0);
+    }
+    for(int id = newId; id < end && (id & PAGE_MASK) != 0; id++)
+      pages.states.get(id >>> PAGE_BITS)[id & PAGE_MASK] = null;
+    for(int page = (newId + PAGE_MASK) >>> PAGE_BITS; pages.hasIdPage(page); page++) {
+      pages.states.set(page, null);
+      pages.offsets.set(page, null);
+      pages.numChoices.set(page, null);
+      pages.stamps.set(page, null);
+    }
+    for(int page = (newSlot + PAGE_MASK) >>> PAGE_BITS; pages.hasSlotPage(page); page++) {
+      pages.sat.set(page, null);
+      pages.nSat.set(page, null);
+    }
+    nextId.set(newId);
+    nextSlot.set(newSlot);
   }
 
-  public Map<State, StateReward> getRewards() { return r; }
-  public StateReward getLocalReward(State state) { return r.get(state); }
+  /**
+   * Splits the rewards into parts with disjoint ranges of ids, e.g. so that
+   * the policy of each part can be updated by a different thread. The parts
+   * are views of these rewards, meant to be read only.
+   * @param n The number of parts, some of which may be empty
+   */
+  public List<Rewards> partition(int n) {
+    int first = getFirstId(), size = getEndId() - first;
+    List<Rewards> parts = new ArrayList<Rewards>(n);
+    for(int i = 0; i < n; i++)
+      parts.add(new Rewards(this, first + (int)((long)i * size / n), first + (int)((long)(i + 1) * size / n)));
+    return parts;
+  }
+  
+  /**
+   * @return The number of states that have rewards
+   */
+  public int numStates() { return live.get(); }
   
-  public String toString() { return r.toString(); }
-}
\ No newline at end of file
+  public String toString() {
+    StringBuilder s = new StringBuilder("{");
+    for(int i = getFirstId(); i < getEndId(); i++) {
+      PackedState state = getState(i);
+      if(state == null)
+        continue;
+      if(s.length() > 1) s.append(", ");
+      s.append(state).append("=[");
+      for(int c = 0; c < getNumChoices(i); c++)
+        s.append(c == 0 ? "" : ", ").append("(" + getSat(i, c) + ", " + getNSat(i, c) + ")");
+      s.append("]");
+    }
+    return s.append("}").toString();
+  }
+  
+  /**
+   * The tables of pages, which are only replaced by larger copies, and only
+   * while holding the lock, as are pages added to them. Compaction may drop
+   * pages, since nobody else uses the rewards meanwhile.
+   */
+  protected static class Pages {
+    // Indexed by id
+    volatile AtomicReferenceArray<PackedState[]> states;
+    volatile AtomicReferenceArray<int[]> offsets, numChoices;
+    volatile AtomicReferenceArray<AtomicIntegerArray> stamps;
+    
+    // Indexed by offset + choice
+    volatile AtomicReferenceArray<AtomicLongArray> sat, nSat;
+    
+    Pages(int n) {
+      states = new AtomicReferenceArray<PackedState[]>(n);
+      offsets = new AtomicReferenceArray<int[]>(n);
+      numChoices = new AtomicReferenceArray<int[]>(n);
+      stamps = new AtomicReferenceArray<AtomicIntegerArray>(n);
+      sat = new AtomicReferenceArray<AtomicLongArray>(n);
+      nSat = new AtomicReferenceArray<AtomicLongArray>(n);
+    }
+    
+    // The states page is added last, so the others are there once it is
+    boolean hasIdPage(int page) { return page < states.length() && states.get(page) != null; }
+    boolean hasSlotPage(int page) { return page < nSat.length() && nSat.get(page) != null; }
+    
+    synchronized void addIdPage(int page) {
+      if(page >= states.length()) {
+        int n = capacity(states.length(), page);
+        offsets = grow(offsets, n);
+        numChoices = grow(numChoices, n);
+        stamps = grow(stamps, n);
+        states = grow(states, n);
+      }
+      if(states.get(page) == null) {
+        offsets.set(page, new int[PAGE_SIZE]);
+        numChoices.set(page, new int[PAGE_SIZE]);
+        stamps.set(page, new AtomicIntegerArray(PAGE_SIZE));
+        states.set(page, new PackedState[PAGE_SIZE]);
+      }
+    }
+    
+    synchronized void addSlotPage(int page) {
+      if(page >= nSat.length()) {
+        int n = capacity(nSat.length(), page);
+        sat = grow(sat, n);
+        nSat = grow(nSat, n);
+      }
+      if(nSat.get(page) == null) {
+        sat.set(page, new AtomicLongArray(PAGE_SIZE));
+        nSat.set(page, new AtomicLongArray(PAGE_SIZE));
+      }
+    }
+    
+    static int capacity(int length, int page) {
+      return (int) Math.min(MAX_PAGES, Math.max(2L * length, page + 1));
+    }
+    
+    static <T> AtomicReferenceArray<T> grow(AtomicReferenceArray<T> table, int n) {
+      AtomicReferenceArray<T> larger = new AtomicReferenceArray<T>(n);
+      for(int i = 0; i < table.length(); i++)
+        larger.set(i, table.get(i));
+      return larger;
+    }
+  }
+}
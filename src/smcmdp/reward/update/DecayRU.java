@@ -31,9 +31,6 @@
 
 package smcmdp.reward.update;
 
-import java.util.*;
-
-import parser.*;
 import smcmdp.*;
 import smcmdp.policy.*;
 import smcmdp.reward.*;
@@ -45,22 +42,14 @@ public class DecayRU implements RewardUpdate {
   public DecayRU(int startReward) { this.startReward = startReward; }
   
   @Override
-  public void update(Rewards r, List<Step> path, SatResult sat) {
-    Iterator<Step> i = path.iterator();
+  public void update(Rewards r, TraceRecorder path, SatResult sat) {
     for(int n = 0; n < sat.getNSteps(); ++n){
-      Step step = i.next();
-      if(step.numChoices < 2) continue;
-      
-      State state = step.state;
-      r.initialise(state, step.numChoices);
+      if(path.getNumChoices(n) < 2) continue;
       
-      int choice = step.choiceTaken;
-      StateReward stateRewards = r.getLocalReward(state);
-      if(stateRewards == null) // Single choice state
-        continue;
-      ChoiceReward choiceStateReward = stateRewards.get(choice);
-      if(sat.getSat()) choiceStateReward.addSat (Math.max(startReward - n, 1));
-      else             choiceStateReward.addNSat(Math.max(startReward - n, 1));
+      int id = r.initialise(path.getState(n), path.getNumChoices(n));
+      int choice = path.getChoiceTaken(n);
+      if(sat.getSat()) r.addSat (id, choice, Math.max(startReward - n, 1));
+      else             r.addNSat(id, choice, Math.max(startReward - n, 1));
     }
   }
 }
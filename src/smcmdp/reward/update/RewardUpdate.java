@@ -31,8 +31,6 @@
 
 package smcmdp.reward.update;
 
-import java.util.*;
-
 import smcmdp.*;
 import smcmdp.policy.*;
 import smcmdp.reward.*;
@@ -40,9 +38,9 @@ import smcmdp.reward.*;
 
 /**
  * Make sure to call
- * r.initialise(state, step.numChoices);
- * before you apply rewards!!!!!11one
+ * int id = r.initialise(state, path.getNumChoices(n));
+ * and apply rewards to that id!!!!!11one
  */
 public interface RewardUpdate {
-  public void update(Rewards r, List<Step> path, SatResult sat);
+  public void update(Rewards r, TraceRecorder path, SatResult sat);
 }